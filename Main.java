@@ -1,21 +1,105 @@
+package hfa;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Metrics Mode: DISABLED records nothing, SAMPLED records every Nth scan, FULL records everything
+enum MetricsMode {
+    DISABLED, SAMPLED, FULL
+}
 
 // Performance Metrics Class
 class PerformanceMetrics {
-    private int stateTransitions = 0;
-    private int memoryAccesses = 0;
-    private int storageSpace = 0;
-    private int totalStates = 0;
-    private int totalEdges = 0;
-    private double matchingTime = 0.0;
+    public static final int DEFAULT_SAMPLE_INTERVAL = 64;
+    private static final int LATENCY_BUCKETS = 64;
+
+    private volatile MetricsMode mode;
+    private volatile int sampleInterval = DEFAULT_SAMPLE_INTERVAL;
+    private final AtomicLong scanCounter = new AtomicLong();
+
+    private final LongAdder stateTransitions = new LongAdder();
+    private final LongAdder memoryAccesses = new LongAdder();
+    private volatile int storageSpace = 0;
+    private volatile int totalStates = 0;
+    private volatile int totalEdges = 0;
+    private volatile boolean sizeEstimated = false;
+    private final DoubleAdder matchingTime = new DoubleAdder();
+
+    // FULL mode extras: per-pattern counters and a log2 histogram of matchPatterns latency
+    private final ConcurrentHashMap<String, PatternCounters> patternCounters =
+            new ConcurrentHashMap<String, PatternCounters>();
+    private final AtomicLongArray latencyHistogram = new AtomicLongArray(LATENCY_BUCKETS);
+
+    public PerformanceMetrics() {
+        this(MetricsMode.FULL);
+    }
+
+    public PerformanceMetrics(MetricsMode mode) {
+        this.mode = mode;
+    }
+
+    // Per-pattern counters
+    static class PatternCounters {
+        final LongAdder scans = new LongAdder();
+        final LongAdder matches = new LongAdder();
+        final LongAdder transitions = new LongAdder();
+
+        public long getScans() {
+            return scans.sum();
+        }
+
+        public long getMatches() {
+            return matches.sum();
+        }
+
+        public long getTransitions() {
+            return transitions.sum();
+        }
+    }
+
+    // Mode
+    public MetricsMode getMode() {
+        return mode;
+    }
+
+    public void setMode(MetricsMode mode) {
+        this.mode = mode;
+    }
+
+    public void setSampleInterval(int sampleInterval) {
+        if (sampleInterval <= 0) {
+            throw new IllegalArgumentException("Sample interval must be positive: " + sampleInterval);
+        }
+        this.sampleInterval = sampleInterval;
+    }
+
+    public boolean isEnabled() {
+        return mode != MetricsMode.DISABLED;
+    }
+
+    // Decides once per scan whether its counters are recorded
+    public boolean beginScan() {
+        MetricsMode current = mode;
+        if (current == MetricsMode.FULL) {
+            return true;
+        }
+        return current == MetricsMode.SAMPLED && scanCounter.getAndIncrement() % sampleInterval == 0;
+    }
 
     // Getters
-    public int getStateTransitions() {
-        return stateTransitions;
+    public long getStateTransitions() {
+        return stateTransitions.sum();
     }
 
-    public int getMemoryAccesses() {
-        return memoryAccesses;
+    public long getMemoryAccesses() {
+        return memoryAccesses.sum();
     }
 
     public int getStorageSpace() {
@@ -30,8 +114,46 @@ class PerformanceMetrics {
         return totalEdges;
     }
 
+    // True when states, edges and storage describe tables the engine does not itself execute
+    public boolean isSizeEstimated() {
+        return sizeEstimated;
+    }
+
     public double getMatchingTime() {
-        return matchingTime;
+        return matchingTime.sum();
+    }
+
+    public Map<String, PatternCounters> getPatternCounters() {
+        return Collections.unmodifiableMap(patternCounters);
+    }
+
+    public long[] getLatencyHistogram() {
+        long[] buckets = new long[LATENCY_BUCKETS];
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            buckets[i] = latencyHistogram.get(i);
+        }
+        return buckets;
+    }
+
+    // Upper bound in nanoseconds of the histogram bucket holding the given percentile (0-100)
+    public long getLatencyPercentile(double percentile) {
+        long[] buckets = getLatencyHistogram();
+        long total = 0;
+        for (long count : buckets) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            seen += buckets[i];
+            if (seen >= Math.max(rank, 1)) {
+                return i == LATENCY_BUCKETS - 1 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+            }
+        }
+        return Long.MAX_VALUE;
     }
 
     // Setters
@@ -47,32 +169,83 @@ class PerformanceMetrics {
         this.totalEdges = edges;
     }
 
+    public void setSizeEstimated(boolean estimated) {
+        this.sizeEstimated = estimated;
+    }
+
     public void setMatchingTime(double time) {
-        this.matchingTime = time;
+        matchingTime.reset();
+        matchingTime.add(time);
     }
 
-    // Incrementers
+    public void addMatchingTime(double time) {
+        matchingTime.add(time);
+    }
+
+    // Incrementers: per-event calls only count in FULL mode
     public void incrementStateTransitions() {
-        stateTransitions++;
+        if (mode == MetricsMode.FULL) {
+            stateTransitions.increment();
+        }
     }
 
-    public void incrementStateTransitions(int count) {
-        stateTransitions += count;
+    public void incrementStateTransitions(long count) {
+        if (mode == MetricsMode.FULL) {
+            stateTransitions.add(count);
+        }
     }
 
     public void incrementMemoryAccesses() {
-        memoryAccesses++;
+        if (mode == MetricsMode.FULL) {
+            memoryAccesses.increment();
+        }
+    }
+
+    public void incrementMemoryAccesses(long count) {
+        if (mode == MetricsMode.FULL) {
+            memoryAccesses.add(count);
+        }
     }
 
-    public void incrementMemoryAccesses(int count) {
-        memoryAccesses += count;
+    // Bulk recording for hot loops that count locally; used for FULL and sampled scans
+    public void recordScan(long transitions, long accesses) {
+        stateTransitions.add(transitions);
+        memoryAccesses.add(accesses);
+    }
+
+    public void recordPattern(String pattern, boolean matched, long transitions) {
+        if (mode != MetricsMode.FULL) {
+            return;
+        }
+        PatternCounters counters = patternCounters.get(pattern);
+        if (counters == null) {
+            PatternCounters created = new PatternCounters();
+            counters = patternCounters.putIfAbsent(pattern, created);
+            if (counters == null) {
+                counters = created;
+            }
+        }
+        counters.scans.increment();
+        if (matched) {
+            counters.matches.increment();
+        }
+        counters.transitions.add(transitions);
+    }
+
+    public void recordMatchLatency(long nanos) {
+        int bucket = nanos <= 0 ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+        latencyHistogram.incrementAndGet(bucket);
     }
 
     // Reset
     public void reset() {
-        stateTransitions = 0;
-        memoryAccesses = 0;
-        matchingTime = 0.0;
+        stateTransitions.reset();
+        memoryAccesses.reset();
+        matchingTime.reset();
+        patternCounters.clear();
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            latencyHistogram.set(i, 0);
+        }
     }
 }
 
@@ -105,46 +278,296 @@ class PatternMatchResult {
     }
 }
 
-// Token Result Helper Class
-class TokenResult {
-    private String token;
-    private int newPos;
+// Token Kind Enum
+enum TokenKind {
+    KEYWORD, IDENTIFIER, NUMBER, OPERATOR, SYMBOL
+}
+
+// Token Sink Interface: receives token kind and [start, end) offsets without allocation
+interface TokenSink {
+    void token(TokenKind kind, int start, int end);
+}
+
+// Formatted Token Sink: adapter producing the "[KIND: text]" token strings
+class FormattedTokenSink implements TokenSink {
+    private final CharSequence code;
+    private final List<String> tokens;
+
+    public FormattedTokenSink(CharSequence code, List<String> tokens) {
+        this.code = code;
+        this.tokens = tokens;
+    }
+
+    public void token(TokenKind kind, int start, int end) {
+        tokens.add("[" + kind + ": " + code.subSequence(start, end) + "]");
+    }
+}
+
+// Keyword Recognizer Class: keyword trie compiled into a dense transition table
+class KeywordRecognizer {
+    public static final int DEAD = -1;
+
+    // Character classes: 0 = character that appears in no keyword
+    private final int[] asciiClasses;
+    private final char[] nonAsciiChars;
+    private final int[] nonAsciiClasses;
+    private final int classCount;
+
+    private final int[] transitions;
+    private final boolean[] terminal;
+    private final int keywordCount;
+
+    public KeywordRecognizer(Collection<String> keywords) {
+        TreeSet<Character> alphabet = new TreeSet<Character>();
+        for (String keyword : keywords) {
+            for (int i = 0; i < keyword.length(); i++) {
+                alphabet.add(keyword.charAt(i));
+            }
+        }
+
+        asciiClasses = new int[128];
+        List<Character> nonAscii = new ArrayList<Character>();
+        int nextClass = 1;
+        for (char c : alphabet) {
+            if (c < 128) {
+                asciiClasses[c] = nextClass++;
+            } else {
+                nonAscii.add(c);
+            }
+        }
+        nonAsciiChars = new char[nonAscii.size()];
+        nonAsciiClasses = new int[nonAscii.size()];
+        for (int i = 0; i < nonAscii.size(); i++) {
+            nonAsciiChars[i] = nonAscii.get(i);
+            nonAsciiClasses[i] = nextClass++;
+        }
+        classCount = nextClass;
+
+        List<int[]> rows = new ArrayList<int[]>();
+        List<Boolean> terminalNodes = new ArrayList<Boolean>();
+        rows.add(newRow());
+        terminalNodes.add(false);
+        Set<String> distinct = new HashSet<String>();
+        for (String keyword : keywords) {
+            if (!distinct.add(keyword)) {
+                continue;
+            }
+            int node = 0;
+            for (int i = 0; i < keyword.length(); i++) {
+                int cls = classOf(keyword.charAt(i));
+                if (rows.get(node)[cls] == DEAD) {
+                    rows.get(node)[cls] = rows.size();
+                    rows.add(newRow());
+                    terminalNodes.add(false);
+                }
+                node = rows.get(node)[cls];
+            }
+            terminalNodes.set(node, true);
+        }
+
+        transitions = new int[rows.size() * classCount];
+        terminal = new boolean[rows.size()];
+        for (int node = 0; node < rows.size(); node++) {
+            System.arraycopy(rows.get(node), 0, transitions, node * classCount, classCount);
+            terminal[node] = terminalNodes.get(node);
+        }
+        keywordCount = distinct.size();
+    }
+
+    private KeywordRecognizer(int[] asciiClasses, char[] nonAsciiChars, int[] nonAsciiClasses, int classCount,
+            int[] transitions, boolean[] terminal, int keywordCount) {
+        this.asciiClasses = asciiClasses;
+        this.nonAsciiChars = nonAsciiChars;
+        this.nonAsciiClasses = nonAsciiClasses;
+        this.classCount = classCount;
+        this.transitions = transitions;
+        this.terminal = terminal;
+        this.keywordCount = keywordCount;
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(classCount);
+        out.writeInt(keywordCount);
+        AutomatonImage.writeInts(out, asciiClasses);
+        AutomatonImage.writeChars(out, nonAsciiChars);
+        AutomatonImage.writeInts(out, nonAsciiClasses);
+        AutomatonImage.writeInts(out, transitions);
+        AutomatonImage.writeBooleans(out, terminal);
+    }
+
+    public static KeywordRecognizer readFrom(ByteBuffer in) throws IOException {
+        int classCount = in.getInt();
+        int keywordCount = in.getInt();
+        int[] asciiClasses = AutomatonImage.readInts(in);
+        char[] nonAsciiChars = AutomatonImage.readChars(in);
+        int[] nonAsciiClasses = AutomatonImage.readInts(in);
+        int[] transitions = AutomatonImage.readInts(in);
+        boolean[] terminal = AutomatonImage.readBooleans(in);
+
+        AutomatonImage.check(classCount >= 1 && keywordCount >= 0 && asciiClasses.length == 128
+                && nonAsciiClasses.length == nonAsciiChars.length, "keyword class tables");
+        AutomatonImage.checkRange(asciiClasses, classCount, 1, "keyword classes");
+        AutomatonImage.checkRange(nonAsciiClasses, classCount, 1, "keyword classes");
+        AutomatonImage.checkSorted(nonAsciiChars, "keyword characters");
+        AutomatonImage.check(terminal.length >= 1 && transitions.length == terminal.length * classCount,
+                "keyword transition table size");
+        for (int target : transitions) {
+            AutomatonImage.check(target == DEAD || target >= 0 && target < terminal.length, "keyword transitions");
+        }
+        return new KeywordRecognizer(asciiClasses, nonAsciiChars, nonAsciiClasses, classCount, transitions, terminal,
+                keywordCount);
+    }
+
+    private int[] newRow() {
+        int[] row = new int[classCount];
+        Arrays.fill(row, DEAD);
+        return row;
+    }
+
+    private int classOf(char c) {
+        if (c < 128) {
+            return asciiClasses[c];
+        }
+        int index = Arrays.binarySearch(nonAsciiChars, c);
+        return index >= 0 ? nonAsciiClasses[index] : 0;
+    }
+
+    public int getKeywordCount() {
+        return keywordCount;
+    }
+
+    public int getNodeCount() {
+        return terminal.length;
+    }
+
+    // Live trie edges: table entries that do not lead to DEAD
+    public int getEdgeCount() {
+        int edges = 0;
+        for (int target : transitions) {
+            if (target != DEAD) {
+                edges++;
+            }
+        }
+        return edges;
+    }
+
+    public int getStorageBytes() {
+        return asciiClasses.length * Integer.BYTES + nonAsciiChars.length * (Character.BYTES + Integer.BYTES)
+                + transitions.length * Integer.BYTES + terminal.length;
+    }
+
+    public int start() {
+        return 0;
+    }
 
-    public TokenResult(String token, int newPos) {
-        this.token = token;
-        this.newPos = newPos;
+    // Advances one character; once DEAD the word cannot be a keyword
+    public int next(int node, char c) {
+        if (node == DEAD) {
+            return DEAD;
+        }
+        int cls = classOf(c);
+        return cls == 0 ? DEAD : transitions[node * classCount + cls];
     }
 
-    public String getToken() {
-        return token;
+    public boolean isKeyword(int node) {
+        return node != DEAD && terminal[node];
     }
 
-    public int getNewPos() {
-        return newPos;
+    public boolean matches(CharSequence text, int start, int end) {
+        int node = start();
+        for (int i = start; i < end && node != DEAD; i++) {
+            node = next(node, text.charAt(i));
+        }
+        return isKeyword(node);
     }
 }
 
 // Base Finite Automaton Class
 abstract class FiniteAutomaton {
+    public static final List<String> DEFAULT_KEYWORDS = Collections.unmodifiableList(
+            Arrays.asList("if", "else", "while", "return", "int", "float", "char"));
+    public static final List<String> DEFAULT_PATTERNS = Collections.unmodifiableList(
+            Arrays.asList(".*ab.*cd", ".*ef.*gh", ".*abc.*def", ".*abcde.*fghnm"));
+
     protected PerformanceMetrics metrics;
     protected Set<String> keywords;
+    protected KeywordRecognizer keywordRecognizer;
     protected Set<String> operators;
     protected Set<String> symbols;
     protected List<String> regexPatterns;
 
+    // Pattern-matching counters, flushed once per matchPatterns call
+    protected long scanTransitions;
+    protected long scanAccesses;
+
     public FiniteAutomaton() {
+        this(DEFAULT_KEYWORDS);
+    }
+
+    public FiniteAutomaton(Collection<String> keywordList) {
+        this(keywordList, null);
+    }
+
+    // A prebuilt recognizer (e.g. one loaded from an automaton image) skips building the keyword trie
+    protected FiniteAutomaton(Collection<String> keywordList, KeywordRecognizer recognizer) {
         metrics = new PerformanceMetrics();
 
-        keywords = new HashSet<String>(Arrays.asList("if", "else", "while", "return", "int", "float", "char"));
+        keywords = new HashSet<String>(keywordList);
+        keywordRecognizer = recognizer != null ? recognizer : new KeywordRecognizer(keywords);
         operators = new HashSet<String>(Arrays.asList("+", "-", "*", "/", "=", "<", ">"));
         symbols = new HashSet<String>(Arrays.asList("(", ")", "{", "}", ";", ","));
-        regexPatterns = Arrays.asList(".*ab.*cd", ".*ef.*gh", ".*abc.*def", ".*abcde.*fghnm");
+        regexPatterns = DEFAULT_PATTERNS;
+    }
+
+    // States, edges and storage measured from the pattern tables and keyword trie an engine runs on
+    protected void recordAutomatonSize(CompiledPatternSet compiled, int extraBytes) {
+        metrics.setTotalStates(compiled.getStateCount() + keywordRecognizer.getNodeCount());
+        metrics.setTotalEdges(compiled.getEdgeCount() + keywordRecognizer.getEdgeCount());
+        metrics.setStorageSpace(compiled.getStorageBytes() + keywordRecognizer.getStorageBytes() + extraBytes);
+    }
+
+    // FA and XFA match with hand-written loops, so their size is the unminimized DFA they stand in for
+    protected void recordEstimatedSize(int extraBytes) {
+        recordAutomatonSize(PatternCompiler.compile(regexPatterns, false), extraBytes);
+        metrics.setSizeEstimated(true);
     }
 
     public PerformanceMetrics getMetrics() {
         return metrics;
     }
 
+    protected void flushScan(boolean recorded) {
+        if (recorded) {
+            metrics.recordScan(scanTransitions, scanAccesses);
+        }
+        scanTransitions = 0;
+        scanAccesses = 0;
+    }
+
+    // Character-by-character search for each literal part in turn; used for rules beyond the built-in four
+    protected PatternMatchResult matchLiteralChain(String input, String pattern) {
+        String[] parts = PatternCompiler.parsePattern(pattern);
+        long transitions = 0;
+        int pos = 0;
+        int found = 0;
+        while (found < parts.length && pos <= input.length() - parts[found].length()) {
+            transitions++;
+            if (input.regionMatches(pos, parts[found], 0, parts[found].length())) {
+                pos += parts[found].length();
+                found++;
+            } else {
+                pos++;
+            }
+        }
+        scanTransitions += transitions;
+
+        PatternMatchResult result = new PatternMatchResult(found == parts.length, pattern);
+        for (int i = 0; i < found; i++) {
+            result.addMatchedSubstring(parts[i]);
+        }
+        return result;
+    }
+
     protected boolean isLetter(char c) {
         return Character.isLetter(c);
     }
@@ -153,7 +576,20 @@ abstract class FiniteAutomaton {
         return Character.isLetterOrDigit(c);
     }
 
-    public abstract List<String> tokenize(String code);
+    protected boolean isKeyword(CharSequence code, int start, int end) {
+        return keywordRecognizer.matches(code, start, end);
+    }
+
+    public List<String> tokenize(String code) {
+        long startTime = System.nanoTime();
+        List<String> tokens = new ArrayList<String>();
+        tokenize(code, new FormattedTokenSink(code, tokens));
+        long endTime = System.nanoTime();
+        metrics.setMatchingTime((endTime - startTime) / 1_000_000.0);
+        return tokens;
+    }
+
+    public abstract void tokenize(CharSequence code, TokenSink sink);
 
     public abstract List<PatternMatchResult> matchPatterns(String input);
 }
@@ -163,50 +599,94 @@ class TraditionalFA extends FiniteAutomaton {
 
     public TraditionalFA() {
         super();
-        // DFA has many states due to deterministic nature
-        metrics.setTotalStates(10);
-        metrics.setTotalEdges(45);
-        metrics.setStorageSpace(metrics.getTotalStates() * 32 + metrics.getTotalEdges() * 16);
+        // DFA has many states due to deterministic nature: estimated from the unminimized pattern tables
+        recordEstimatedSize(0);
     }
 
-    public List<String> tokenize(String code) {
-        long startTime=System.nanoTime();List<String>tokens=new ArrayList<String>();int pos=0;
-
-        while(pos<code.length()){metrics.incrementStateTransitions();metrics.incrementMemoryAccesses();
+    public TraditionalFA(List<String> patterns, Collection<String> keywordList) {
+        super(keywordList);
+        regexPatterns = new ArrayList<String>(patterns);
+        recordEstimatedSize(0);
+    }
 
-        char currentChar=code.charAt(pos);
+    public void tokenize(CharSequence code, TokenSink sink) {
+        boolean recorded = metrics.beginScan();
+        long transitions = 0;
+        long accesses = 0;
+        int pos = 0;
 
-        if(Character.isWhitespace(currentChar)){pos++;continue;}
+        while (pos < code.length()) {
+            transitions++;
+            accesses++;
 
-        // Number recognition
-        if(Character.isDigit(currentChar)){int start=pos;while(pos<code.length()&&(Character.isDigit(code.charAt(pos))||code.charAt(pos)=='.')){pos++;metrics.incrementStateTransitions();}tokens.add("[NUMBER: "+code.substring(start,pos)+"]");}
-        // Identifier/Keyword recognition
-        else if(isLetter(currentChar)){int start=pos;while(pos<code.length()&&isAlphaNumeric(code.charAt(pos))){pos++;metrics.incrementStateTransitions();}
+            char currentChar = code.charAt(pos);
 
-        String word=code.substring(start,pos);if(keywords.contains(word)){tokens.add("[KEYWORD: "+word+"]");}else{tokens.add("[IDENTIFIER: "+word+"]");}}
-        // Operator recognition
-        else if(pos<code.length()-1&&code.substring(pos,pos+2).equals("==")){tokens.add("[OPERATOR: ==]");pos+=2;metrics.incrementStateTransitions(2);}else if(operators.contains(String.valueOf(currentChar))){tokens.add("[OPERATOR: "+currentChar+"]");pos++;metrics.incrementStateTransitions();}
-        // Symbol recognition
-        else if(symbols.contains(String.valueOf(currentChar))){tokens.add("[SYMBOL: "+currentChar+"]");pos++;metrics.incrementStateTransitions();}else{pos++;metrics.incrementStateTransitions();}}
+            if (Character.isWhitespace(currentChar)) {
+                pos++;
+                continue;
+            }
 
-        long endTime=System.nanoTime();metrics.setMatchingTime((endTime-startTime)/1_000_000.0);return tokens;
+            // Number recognition
+            if (Character.isDigit(currentChar)) {
+                int start = pos;
+                while (pos < code.length() && (Character.isDigit(code.charAt(pos)) || code.charAt(pos) == '.')) {
+                    pos++;
+                    transitions++;
+                }
+                sink.token(TokenKind.NUMBER, start, pos);
+            }
+            // Identifier/Keyword recognition
+            else if (isLetter(currentChar)) {
+                int start = pos;
+                while (pos < code.length() && isAlphaNumeric(code.charAt(pos))) {
+                    pos++;
+                    transitions++;
+                }
+                sink.token(isKeyword(code, start, pos) ? TokenKind.KEYWORD : TokenKind.IDENTIFIER, start, pos);
+            }
+            // Operator recognition
+            else if (currentChar == '=' && pos < code.length() - 1 && code.charAt(pos + 1) == '=') {
+                sink.token(TokenKind.OPERATOR, pos, pos + 2);
+                pos += 2;
+                transitions += 2;
+            } else if (operators.contains(String.valueOf(currentChar))) {
+                sink.token(TokenKind.OPERATOR, pos, pos + 1);
+                pos++;
+                transitions++;
+            }
+            // Symbol recognition
+            else if (symbols.contains(String.valueOf(currentChar))) {
+                sink.token(TokenKind.SYMBOL, pos, pos + 1);
+                pos++;
+                transitions++;
+            } else {
+                pos++;
+                transitions++;
+            }
+        }
+        if (recorded) {
+            metrics.recordScan(transitions, accesses);
+        }
     }
 
     public List<PatternMatchResult> matchPatterns(String input) {
-        long startTime=System.nanoTime();List<PatternMatchResult>results=new ArrayList<PatternMatchResult>();
+        long startTime=System.nanoTime();boolean recorded=metrics.beginScan();List<PatternMatchResult>results=new ArrayList<PatternMatchResult>();
 
         for(String pattern:regexPatterns){PatternMatchResult result=traditionalPatternMatch(input,pattern);results.add(result);}
 
-        long endTime=System.nanoTime();metrics.setMatchingTime(metrics.getMatchingTime()+(endTime-startTime)/1_000_000.0);return results;
+        flushScan(recorded);long endTime=System.nanoTime();metrics.addMatchingTime((endTime-startTime)/1_000_000.0);if(recorded){metrics.recordMatchLatency(endTime-startTime);}return results;
     }
 
     private PatternMatchResult traditionalPatternMatch(String input, String pattern) {
+        if (!DEFAULT_PATTERNS.contains(pattern)) {
+            return matchLiteralChain(input, pattern);
+        }
         PatternMatchResult result = new PatternMatchResult(false, pattern);
 
         // Traditional character-by-character matching
         for (int i = 0; i < input.length(); i++) {
-            metrics.incrementStateTransitions();
-            metrics.incrementMemoryAccesses();
+            scanTransitions++;
+            scanAccesses++;
 
             if (pattern.equals(".*ab.*cd")) {
                 result = matchPattern_ab_cd(input);
@@ -229,14 +709,14 @@ class TraditionalFA extends FiniteAutomaton {
         PatternMatchResult result = new PatternMatchResult(false, ".*ab.*cd");
         boolean found1 = false;
         for (int i = 0; i <= input.length() - 2; i++) {
-            metrics.incrementStateTransitions();
-            metrics.incrementMemoryAccesses();
+            scanTransitions++;
+            scanAccesses++;
             if (!found1 && i <= input.length() - 2 && input.substring(i, i + 2).equals("ab")) {
                 found1 = true;
                 result.addMatchedSubstring("ab");
                 // Look for "cd" after this position
                 for (int j = i + 2; j <= input.length() - 2; j++) {
-                    metrics.incrementStateTransitions();
+                    scanTransitions++;
                     if (input.substring(j, j + 2).equals("cd")) {
                         result = new PatternMatchResult(true, ".*ab.*cd");
                         result.addMatchedSubstring("ab");
@@ -253,13 +733,13 @@ class TraditionalFA extends FiniteAutomaton {
         PatternMatchResult result = new PatternMatchResult(false, ".*ef.*gh");
         boolean found1 = false;
         for (int i = 0; i <= input.length() - 2; i++) {
-            metrics.incrementStateTransitions();
-            metrics.incrementMemoryAccesses();
+            scanTransitions++;
+            scanAccesses++;
             if (!found1 && i <= input.length() - 2 && input.substring(i, i + 2).equals("ef")) {
                 found1 = true;
                 result.addMatchedSubstring("ef");
                 for (int j = i + 2; j <= input.length() - 2; j++) {
-                    metrics.incrementStateTransitions();
+                    scanTransitions++;
                     if (input.substring(j, j + 2).equals("gh")) {
                         result = new PatternMatchResult(true, ".*ef.*gh");
                         result.addMatchedSubstring("ef");
@@ -277,14 +757,14 @@ class TraditionalFA extends FiniteAutomaton {
         String target1 = "abc", target2 = "def";
         boolean found1 = false;
         for (int i = 0; i <= input.length() - 3; i++) {
-            metrics.incrementStateTransitions();
-            metrics.incrementMemoryAccesses();
+            scanTransitions++;
+            scanAccesses++;
             if (!found1 && input.substring(i, i + 3).equals(target1)) {
                 found1 = true;
                 result.addMatchedSubstring("abc");
                 // Look for "def" after this position
                 for (int j = i + 3; j <= input.length() - 3; j++) {
-                    metrics.incrementStateTransitions();
+                    scanTransitions++;
                     if (input.substring(j, j + 3).equals(target2)) {
                         result = new PatternMatchResult(true, ".*abc.*def");
                         result.addMatchedSubstring("abc");
@@ -302,14 +782,14 @@ class TraditionalFA extends FiniteAutomaton {
         String target1 = "abcde", target2 = "fghnm";
         boolean found1 = false;
         for (int i = 0; i <= input.length() - 5; i++) {
-            metrics.incrementStateTransitions();
-            metrics.incrementMemoryAccesses();
+            scanTransitions++;
+            scanAccesses++;
             if (!found1 && i <= input.length() - 5 && input.substring(i, i + 5).equals(target1)) {
                 found1 = true;
                 result.addMatchedSubstring("abcde");
                 // Look for "fghnm" after this position
                 for (int j = i + 5; j <= input.length() - 5; j++) {
-                    metrics.incrementStateTransitions();
+                    scanTransitions++;
                     if (input.substring(j, j + 5).equals(target2)) {
                         result = new PatternMatchResult(true, ".*abcde.*fghnm");
                         result.addMatchedSubstring("abcde");
@@ -325,103 +805,158 @@ class TraditionalFA extends FiniteAutomaton {
 
 // Extended Finite Automaton (XFA) Implementation
 class ExtendedFA extends FiniteAutomaton {
-    private Map<String, Boolean> auxiliaryVars;
-    private Map<String, Integer> patternProgress;
+    // Auxiliary variables packed into one bit register, indexed by slot number
+    private static final int MATCHED_KEYWORD = 0;
+    private static final int MATCHED_OPERATOR = 1;
+    private static final int IN_NUMBER = 2;
+    private static final int IN_IDENTIFIER = 3;
+
+    // Pattern matching auxiliary variables (research paper approach)
+    private static final int FOUND_AB = 4;
+    private static final int FOUND_CD = 5;
+    private static final int FOUND_EF = 6;
+    private static final int FOUND_GH = 7;
+    private static final int FOUND_ABC = 8;
+    private static final int FOUND_DEF = 9;
+    private static final int FOUND_ABCDE = 10;
+    private static final int FOUND_FGHNM = 11;
+
+    private static final long LEXER_VARS_MASK = 0x00FL;
+    private static final long PATTERN_VARS_MASK = 0xFF0L;
+
+    private long auxiliaryVars;
 
     public ExtendedFA() {
         super();
-        auxiliaryVars = new HashMap<String, Boolean>();
-        auxiliaryVars.put("matched_keyword", false);
-        auxiliaryVars.put("matched_operator", false);
-        auxiliaryVars.put("in_number", false);
-        auxiliaryVars.put("in_identifier", false);
-
-        // Pattern matching auxiliary variables (research paper approach)
-        auxiliaryVars.put("found_ab", false);
-        auxiliaryVars.put("found_cd", false);
-        auxiliaryVars.put("found_ef", false);
-        auxiliaryVars.put("found_gh", false);
-        auxiliaryVars.put("found_abc", false);
-        auxiliaryVars.put("found_def", false);
-        auxiliaryVars.put("found_abcde", false);
-        auxiliaryVars.put("found_fghnm", false);
-
-        patternProgress = new HashMap<String, Integer>();
-
-        // XFA has more states due to auxiliary variable combinations
-        metrics.setTotalStates(18); // More states for regex + auxiliary vars
-        metrics.setTotalEdges(64); // More transitions including auxiliary paths
-        metrics.setStorageSpace(
-                metrics.getTotalStates() * 32 + metrics.getTotalEdges() * 16 + auxiliaryVars.size() * 8);
+        auxiliaryVars = 0L;
+
+        // XFA estimate: the same unminimized tables plus its auxiliary variable register
+        recordEstimatedSize(Long.BYTES);
     }
 
-    private void resetAuxiliaryVars() {
-        metrics.incrementMemoryAccesses(auxiliaryVars.size());
-        for (String key : auxiliaryVars.keySet()) {
-            if (!key.startsWith("found_")) { // Don't reset pattern progress
-                auxiliaryVars.put(key, false);
-            }
-        }
+    public ExtendedFA(List<String> patterns, Collection<String> keywordList) {
+        super(keywordList);
+        regexPatterns = new ArrayList<String>(patterns);
+        auxiliaryVars = 0L;
+        recordEstimatedSize(Long.BYTES);
     }
 
-    private void resetPatternVars() {
-        metrics.incrementMemoryAccesses(8); // Pattern-related aux vars
-        auxiliaryVars.put("found_ab", false);
-        auxiliaryVars.put("found_cd", false);
-        auxiliaryVars.put("found_ef", false);
-        auxiliaryVars.put("found_gh", false);
-        auxiliaryVars.put("found_abc", false);
-        auxiliaryVars.put("found_def", false);
-        auxiliaryVars.put("found_abcde", false);
-        auxiliaryVars.put("found_fghnm", false);
-        patternProgress.clear();
+    private void setAuxiliaryVar(int slot) {
+        auxiliaryVars |= 1L << slot;
     }
 
-    public List<String> tokenize(String code) {
-        long startTime=System.nanoTime();List<String>tokens=new ArrayList<String>();int pos=0;
+    private boolean getAuxiliaryVar(int slot) {
+        return (auxiliaryVars & (1L << slot)) != 0;
+    }
+
+    private void resetAuxiliaryVars() {
+        auxiliaryVars &= ~LEXER_VARS_MASK; // Don't reset pattern progress
+    }
 
-        while(pos<code.length()){metrics.incrementStateTransitions();metrics.incrementMemoryAccesses(2); // Check
-                                                                                                         // auxiliary
-                                                                                                         // vars
+    private void resetPatternVars() {
+        scanAccesses++;
+        auxiliaryVars &= ~PATTERN_VARS_MASK;
+    }
 
-        char currentChar=code.charAt(pos);
+    public void tokenize(CharSequence code, TokenSink sink) {
+        boolean recorded = metrics.beginScan();
+        long transitions = 0;
+        long accesses = 0;
+        int pos = 0;
 
-        if(Character.isWhitespace(currentChar)){pos++;continue;}
+        while (pos < code.length()) {
+            transitions++;
+            accesses += 2; // Check auxiliary vars
 
-        resetAuxiliaryVars();
+            char currentChar = code.charAt(pos);
 
-        // Number recognition with auxiliary variable
-        if(Character.isDigit(currentChar)){auxiliaryVars.put("in_number",true);metrics.incrementMemoryAccesses();int start=pos;while(pos<code.length()&&(Character.isDigit(code.charAt(pos))||code.charAt(pos)=='.')){pos++;metrics.incrementStateTransitions();metrics.incrementMemoryAccesses(); // Access
-                                                                                                                                                                                                                                                                                                   // auxiliary
-                                                                                                                                                                                                                                                                                                   // var
-        }tokens.add("[NUMBER: "+code.substring(start,pos)+"]");}
-        // Identifier/Keyword recognition with auxiliary variable
-        else if(isLetter(currentChar)){auxiliaryVars.put("in_identifier",true);metrics.incrementMemoryAccesses();int start=pos;while(pos<code.length()&&isAlphaNumeric(code.charAt(pos))){pos++;metrics.incrementStateTransitions();metrics.incrementMemoryAccesses();}
+            if (Character.isWhitespace(currentChar)) {
+                pos++;
+                continue;
+            }
 
-        String word=code.substring(start,pos);if(keywords.contains(word)){auxiliaryVars.put("matched_keyword",true);metrics.incrementMemoryAccesses();tokens.add("[KEYWORD: "+word+"]");}else{tokens.add("[IDENTIFIER: "+word+"]");}}
-        // Operator recognition with auxiliary variable
-        else if(pos<code.length()-1&&code.substring(pos,pos+2).equals("==")){auxiliaryVars.put("matched_operator",true);metrics.incrementMemoryAccesses();tokens.add("[OPERATOR: ==]");pos+=2;metrics.incrementStateTransitions(2);}else if(operators.contains(String.valueOf(currentChar))){auxiliaryVars.put("matched_operator",true);metrics.incrementMemoryAccesses();tokens.add("[OPERATOR: "+currentChar+"]");pos++;metrics.incrementStateTransitions();}
-        // Symbol recognition
-        else if(symbols.contains(String.valueOf(currentChar))){tokens.add("[SYMBOL: "+currentChar+"]");pos++;metrics.incrementStateTransitions();}else{pos++;metrics.incrementStateTransitions();}}
+            resetAuxiliaryVars();
+            accesses++;
+
+            // Number recognition with auxiliary variable
+            if (Character.isDigit(currentChar)) {
+                setAuxiliaryVar(IN_NUMBER);
+                accesses++;
+                int start = pos;
+                while (pos < code.length() && (Character.isDigit(code.charAt(pos)) || code.charAt(pos) == '.')) {
+                    pos++;
+                    transitions++;
+                    accesses++; // Access auxiliary var
+                }
+                sink.token(TokenKind.NUMBER, start, pos);
+            }
+            // Identifier/Keyword recognition with auxiliary variable
+            else if (isLetter(currentChar)) {
+                setAuxiliaryVar(IN_IDENTIFIER);
+                accesses++;
+                int start = pos;
+                while (pos < code.length() && isAlphaNumeric(code.charAt(pos))) {
+                    pos++;
+                    transitions++;
+                    accesses++;
+                }
 
-        long endTime=System.nanoTime();metrics.setMatchingTime((endTime-startTime)/1_000_000.0);return tokens;
+                if (isKeyword(code, start, pos)) {
+                    setAuxiliaryVar(MATCHED_KEYWORD);
+                    accesses++;
+                    sink.token(TokenKind.KEYWORD, start, pos);
+                } else {
+                    sink.token(TokenKind.IDENTIFIER, start, pos);
+                }
+            }
+            // Operator recognition with auxiliary variable
+            else if (currentChar == '=' && pos < code.length() - 1 && code.charAt(pos + 1) == '=') {
+                setAuxiliaryVar(MATCHED_OPERATOR);
+                accesses++;
+                sink.token(TokenKind.OPERATOR, pos, pos + 2);
+                pos += 2;
+                transitions += 2;
+            } else if (operators.contains(String.valueOf(currentChar))) {
+                setAuxiliaryVar(MATCHED_OPERATOR);
+                accesses++;
+                sink.token(TokenKind.OPERATOR, pos, pos + 1);
+                pos++;
+                transitions++;
+            }
+            // Symbol recognition
+            else if (symbols.contains(String.valueOf(currentChar))) {
+                sink.token(TokenKind.SYMBOL, pos, pos + 1);
+                pos++;
+                transitions++;
+            } else {
+                pos++;
+                transitions++;
+            }
+        }
+        if (recorded) {
+            metrics.recordScan(transitions, accesses);
+        }
     }
 
     public List<PatternMatchResult> matchPatterns(String input) {
-        long startTime=System.nanoTime();List<PatternMatchResult>results=new ArrayList<PatternMatchResult>();
+        long startTime=System.nanoTime();boolean recorded=metrics.beginScan();List<PatternMatchResult>results=new ArrayList<PatternMatchResult>();
 
         for(String pattern:regexPatterns){resetPatternVars();PatternMatchResult result=matchPatternWithAuxVars(input,pattern);results.add(result);}
 
-        long endTime=System.nanoTime();metrics.setMatchingTime(metrics.getMatchingTime()+(endTime-startTime)/1_000_000.0);return results;
+        flushScan(recorded);long endTime=System.nanoTime();metrics.addMatchingTime((endTime-startTime)/1_000_000.0);if(recorded){metrics.recordMatchLatency(endTime-startTime);}return results;
     }
 
     private PatternMatchResult matchPatternWithAuxVars(String input, String pattern) {
+        // Auxiliary variable slots exist only for the built-in four rules
+        if (!DEFAULT_PATTERNS.contains(pattern)) {
+            return matchLiteralChain(input, pattern);
+        }
         PatternMatchResult result = new PatternMatchResult(false, pattern);
 
         // XFA approach: Use auxiliary variables to track pattern progress
         for (int i = 0; i < input.length(); i++) {
-            metrics.incrementStateTransitions();
-            metrics.incrementMemoryAccesses(3); // Check multiple aux vars
+            scanTransitions++;
+            scanAccesses += 3; // Check multiple aux vars
 
             char c = input.charAt(i);
 
@@ -445,15 +980,15 @@ class ExtendedFA extends FiniteAutomaton {
     private PatternMatchResult processPattern_ab_cd(String input, int pos, char c, PatternMatchResult result) {
         // Check for "ab" pattern using auxiliary variables
         if (pos < input.length() - 1 && input.substring(pos, pos + 2).equals("ab")) {
-            auxiliaryVars.put("found_ab", true);
-            metrics.incrementMemoryAccesses();
+            setAuxiliaryVar(FOUND_AB);
+            scanAccesses++;
             result.addMatchedSubstring("ab");
         }
 
         // Check for "cd" pattern if "ab" was found
-        if (auxiliaryVars.get("found_ab") && pos < input.length() - 1 && input.substring(pos, pos + 2).equals("cd")) {
-            auxiliaryVars.put("found_cd", true);
-            metrics.incrementMemoryAccesses();
+        if (getAuxiliaryVar(FOUND_AB) && pos < input.length() - 1 && input.substring(pos, pos + 2).equals("cd")) {
+            setAuxiliaryVar(FOUND_CD);
+            scanAccesses++;
             result.addMatchedSubstring("cd");
             return new PatternMatchResult(true, ".*ab.*cd");
         }
@@ -464,15 +999,15 @@ class ExtendedFA extends FiniteAutomaton {
     private PatternMatchResult processPattern_ef_gh(String input, int pos, char c, PatternMatchResult result) {
         // Check for "ef" pattern using auxiliary variables
         if (pos < input.length() - 1 && input.substring(pos, pos + 2).equals("ef")) {
-            auxiliaryVars.put("found_ef", true);
-            metrics.incrementMemoryAccesses();
+            setAuxiliaryVar(FOUND_EF);
+            scanAccesses++;
             result.addMatchedSubstring("ef");
         }
 
         // Check for "gh" pattern if "ef" was found
-        if (auxiliaryVars.get("found_ef") && pos < input.length() - 1 && input.substring(pos, pos + 2).equals("gh")) {
-            auxiliaryVars.put("found_gh", true);
-            metrics.incrementMemoryAccesses();
+        if (getAuxiliaryVar(FOUND_EF) && pos < input.length() - 1 && input.substring(pos, pos + 2).equals("gh")) {
+            setAuxiliaryVar(FOUND_GH);
+            scanAccesses++;
             result.addMatchedSubstring("gh");
             return new PatternMatchResult(true, ".*ef.*gh");
         }
@@ -483,16 +1018,16 @@ class ExtendedFA extends FiniteAutomaton {
     private PatternMatchResult processPattern_abc_def(String input, int pos, PatternMatchResult result) {
         // Check for "abc" pattern using auxiliary variables
         if (pos <= input.length() - 3 && input.substring(pos, pos + 3).equals("abc")) {
-            auxiliaryVars.put("found_abc", true);
-            metrics.incrementMemoryAccesses();
+            setAuxiliaryVar(FOUND_ABC);
+            scanAccesses++;
             result.addMatchedSubstring("abc");
         }
 
         // Check for "def" pattern if "abc" was found
-        if (auxiliaryVars.get("found_abc") && pos <= input.length() - 3
+        if (getAuxiliaryVar(FOUND_ABC) && pos <= input.length() - 3
                 && input.substring(pos, pos + 3).equals("def")) {
-            auxiliaryVars.put("found_def", true);
-            metrics.incrementMemoryAccesses();
+            setAuxiliaryVar(FOUND_DEF);
+            scanAccesses++;
             result.addMatchedSubstring("def");
             return new PatternMatchResult(true, ".*abc.*def");
         }
@@ -503,16 +1038,16 @@ class ExtendedFA extends FiniteAutomaton {
     private PatternMatchResult processPattern_abcde_fghnm(String input, int pos, PatternMatchResult result) {
         // Check for "abcde" pattern using auxiliary variables
         if (pos <= input.length() - 5 && input.substring(pos, pos + 5).equals("abcde")) {
-            auxiliaryVars.put("found_abcde", true);
-            metrics.incrementMemoryAccesses();
+            setAuxiliaryVar(FOUND_ABCDE);
+            scanAccesses++;
             result.addMatchedSubstring("abcde");
         }
 
         // Check for "fghnm" pattern if "abcde" was found
-        if (auxiliaryVars.get("found_abcde") && pos <= input.length() - 5
+        if (getAuxiliaryVar(FOUND_ABCDE) && pos <= input.length() - 5
                 && input.substring(pos, pos + 5).equals("fghnm")) {
-            auxiliaryVars.put("found_fghnm", true);
-            metrics.incrementMemoryAccesses();
+            setAuxiliaryVar(FOUND_FGHNM);
+            scanAccesses++;
             result.addMatchedSubstring("fghnm");
             return new PatternMatchResult(true, ".*abcde.*fghnm");
         }
@@ -521,483 +1056,4341 @@ class ExtendedFA extends FiniteAutomaton {
     }
 }
 
-// Research Paper HFA Implementation
-class HighEfficientFA extends FiniteAutomaton {
+// Compiled Pattern Set Class (dense table-driven HFA automata)
+class CompiledPatternSet {
+    private final String[] patterns;
+    private final String[][] parts;
+
+    // Character classes: 0 = any character not used by a literal
+    private final int[] asciiClasses;
+    private final char[] nonAsciiChars;
+    private final int[] nonAsciiClasses;
+    private final int classCount;
+
+    // Transition table holds premultiplied state offsets (stateIndex * classCount)
+    private final int[] transitions;
+    private final boolean[] accepting;
+    private final int[] statePart;
+    private final int[] startStates;
+    private final int[] acceptStates;
+    private final int[] minLengths;
+
+    // Shared literal automaton for single-pass matching of the whole set
+    private final LiteralAutomaton literals;
+
+    // Judging Instrument: the character of each single-character class, and for every state that only
+    // one character can leave (the start of each literal part) that character, else -1
+    private final char[] classChars;
+    private final int[] escapeChars;
+
+    // Judging Instrument: long literal parts are found with a Horspool shift table over character classes
+    public static final int SKIP_SEARCH_MIN_LENGTH = 8;
+    private final int[][][] partShifts;
+
+    CompiledPatternSet(String[] patterns, String[][] parts, int[] asciiClasses, char[] nonAsciiChars,
+            int[] nonAsciiClasses, int classCount, int[] transitions, boolean[] accepting, int[] statePart,
+            int[] startStates, int[] acceptStates, int[] minLengths, LiteralAutomaton literals) {
+        this.patterns = patterns;
+        this.parts = parts;
+        this.asciiClasses = asciiClasses;
+        this.nonAsciiChars = nonAsciiChars;
+        this.nonAsciiClasses = nonAsciiClasses;
+        this.classCount = classCount;
+        this.transitions = transitions;
+        this.accepting = accepting;
+        this.statePart = statePart;
+        this.startStates = startStates;
+        this.acceptStates = acceptStates;
+        this.minLengths = minLengths;
+        this.literals = literals;
+
+        classChars = new char[classCount];
+        for (char c = 0; c < 128; c++) {
+            classChars[asciiClasses[c]] = c;
+        }
+        for (int i = 0; i < nonAsciiChars.length; i++) {
+            classChars[nonAsciiClasses[i]] = nonAsciiChars[i];
+        }
+        escapeChars = new int[accepting.length];
+        for (int state = 0; state < accepting.length; state++) {
+            int self = state * classCount;
+            int leaving = 0;
+            int escapeClass = 0;
+            for (int cls = 0; cls < classCount; cls++) {
+                if (transitions[self + cls] != self) {
+                    leaving++;
+                    escapeClass = cls;
+                }
+            }
+            escapeChars[state] = leaving == 1 && escapeClass != 0 ? classChars[escapeClass] : -1;
+        }
 
-    // HFA States for pattern matching
-    private enum HFAState {
-        START, FOUND_A, FOUND_AB, FOUND_ABC, FOUND_ABCD, FOUND_ABCDE,
-        LOOKING_FOR_C, LOOKING_FOR_D, LOOKING_FOR_DEF,
-        LOOKING_FOR_E, LOOKING_FOR_F, LOOKING_FOR_G, LOOKING_FOR_H,
-        LOOKING_FOR_FGHNM, ACCEPT
+        partShifts = new int[patterns.length][][];
+        for (int p = 0; p < patterns.length; p++) {
+            partShifts[p] = new int[parts[p].length][];
+            for (int partIndex = 0; partIndex < parts[p].length; partIndex++) {
+                if (parts[p][partIndex].length() >= SKIP_SEARCH_MIN_LENGTH) {
+                    partShifts[p][partIndex] = buildShiftTable(parts[p][partIndex]);
+                }
+            }
+        }
     }
 
-    // Auxiliary Variables (like XFA but with smarter usage)
-    private Map<String, Boolean> auxiliaryVars;
-    private Map<String, Integer> progressCounters;
+    // Horspool: distance from a character's last occurrence (excluding the final position) to the end.
+    // Entries 0..127 are indexed by ASCII character, the rest by character class
+    private int[] buildShiftTable(String part) {
+        int[] shift = new int[128 + classCount];
+        Arrays.fill(shift, part.length());
+        for (int i = 0; i < part.length() - 1; i++) {
+            char c = part.charAt(i);
+            shift[c < 128 ? c : 128 + classOf(c)] = part.length() - 1 - i;
+        }
+        return shift;
+    }
 
-    // Judging Instruments
-    private String currentPattern;
-    private boolean useIntelligentRouting;
+    public int getPatternCount() {
+        return patterns.length;
+    }
 
-    public HighEfficientFA() {
-        super();
-        auxiliaryVars = new HashMap<String, Boolean>();
-        progressCounters = new HashMap<String, Integer>();
+    public String getPattern(int patternIndex) {
+        return patterns[patternIndex];
+    }
 
-        // Initialize auxiliary variables
-        auxiliaryVars.put("found_first_part", false);
-        auxiliaryVars.put("looking_for_second", false);
-        auxiliaryVars.put("pattern_ab_cd", false);
-        auxiliaryVars.put("pattern_ef_gh", false);
-        auxiliaryVars.put("pattern_abc_def", false);
-        auxiliaryVars.put("pattern_abcde_fghnm", false);
+    public int getPartCount(int patternIndex) {
+        return parts[patternIndex].length;
+    }
 
-        // HFA has optimized states - fewer than XFA due to intelligent transitions
-        metrics.setTotalStates(12);
-        metrics.setTotalEdges(36);
-        metrics.setStorageSpace(metrics.getTotalStates() * 32 + metrics.getTotalEdges() * 16 + 128);
+    public String getPart(int patternIndex, int partIndex) {
+        return parts[patternIndex][partIndex];
     }
 
-    public List<String> tokenize(String code) {
-        long startTime=System.nanoTime();List<String>tokens=new ArrayList<String>();int pos=0;
+    public int getStartState(int patternIndex) {
+        return startStates[patternIndex];
+    }
 
-        while(pos<code.length()){char currentChar=code.charAt(pos);
+    public int getAcceptState(int patternIndex) {
+        return acceptStates[patternIndex];
+    }
 
-        if(Character.isWhitespace(currentChar)){pos++;continue;}
+    public int getMinLength(int patternIndex) {
+        return minLengths[patternIndex];
+    }
 
-        // HFA Judging Instrument: Predict character type for intelligent routing
-        String charType=judgeCharacterType(currentChar);metrics.incrementMemoryAccesses();
+    public int getClassCount() {
+        return classCount;
+    }
 
-        // Intelligent path selection based on judging instrument
-        TokenResult result=intelligentTransition(pos,code,charType);
+    public int getStateCount() {
+        return accepting.length;
+    }
 
-        if(result.getToken()!=null){tokens.add(result.getToken());metrics.incrementStateTransitions(); // Reduced
-                                                                                                       // transitions
-                                                                                                       // due to
-                                                                                                       // intelligent
-                                                                                                       // routing
+    // Per state: the default edge (class 0) plus every class that leads somewhere else
+    public int getEdgeCount() {
+        int edges = 0;
+        for (int state = 0; state < transitions.length; state += classCount) {
+            edges++;
+            for (int cls = 1; cls < classCount; cls++) {
+                if (transitions[state + cls] != transitions[state]) {
+                    edges++;
+                }
+            }
         }
+        return edges;
+    }
 
-        pos=result.getNewPos();}
+    // Bytes held by the matching tables (the literal automaton reports its own)
+    public int getStorageBytes() {
+        int skipTableBytes = 0;
+        for (int[][] shifts : partShifts) {
+            for (int[] shift : shifts) {
+                skipTableBytes += shift != null ? shift.length * Integer.BYTES : 0;
+            }
+        }
+        return asciiClasses.length * Integer.BYTES + nonAsciiChars.length * (Character.BYTES + Integer.BYTES)
+                + transitions.length * Integer.BYTES + accepting.length + statePart.length * Integer.BYTES
+                + patterns.length * 3 * Integer.BYTES + classChars.length * Character.BYTES
+                + escapeChars.length * Integer.BYTES + skipTableBytes;
+    }
 
-        long endTime=System.nanoTime();metrics.setMatchingTime((endTime-startTime)/1_000_000.0);return tokens;
+    public LiteralAutomaton getLiteralAutomaton() {
+        return literals;
     }
 
-    // Judging Instrument for character type prediction
-    private String judgeCharacterType(char c) {
-        if (Character.isDigit(c))
-            return "DIGIT";
-        if (isLetter(c))
-            return "LETTER";
-        if (operators.contains(String.valueOf(c)))
-            return "OPERATOR";
-        if (symbols.contains(String.valueOf(c)))
-            return "SYMBOL";
-        return "OTHER";
+    // The only character that leaves the state, or -1 when several do
+    public int getEscapeChar(int state) {
+        return escapeChars[state / classCount];
     }
 
-    // Intelligent transition based on judging instruments
-    private TokenResult intelligentTransition(int pos, String code, String charType) {
-        metrics.incrementMemoryAccesses();
+    // Start of the first occurrence of a literal part at or after from, or -1 when there is none
+    public int findPart(String text, int patternIndex, int partIndex, int from) {
+        String part = parts[patternIndex][partIndex];
+        int[] shift = partShifts[patternIndex][partIndex];
+        if (shift == null) {
+            return text.indexOf(part, from);
+        }
 
-        if (charType.equals("DIGIT")) {
-            return processNumber(pos, code);
-        } else if (charType.equals("LETTER")) {
-            return processIdentifier(pos, code);
-        } else if (charType.equals("OPERATOR")) {
-            return processOperator(pos, code);
-        } else if (charType.equals("SYMBOL")) {
-            return processSymbol(pos, code);
-        } else {
-            return new TokenResult(null, pos + 1);
+        int last = part.length() - 1;
+        char lastChar = part.charAt(last);
+        for (int i = from; i + last < text.length(); ) {
+            char c = text.charAt(i + last);
+            if (c == lastChar && text.startsWith(part, i)) {
+                return i;
+            }
+            i += shift[c < 128 ? c : 128 + classOf(c)];
         }
+        return -1;
     }
 
-    private TokenResult processNumber(int pos, String code) {
-        int start = pos;
-        while (pos < code.length() &&
-                (Character.isDigit(code.charAt(pos)) || code.charAt(pos) == '.')) {
-            pos++;
+    // Prefilter over the first characters of every literal: the ones that leave the literal automaton's root
+    public LiteralPrefilter createLiteralPrefilter() {
+        StringBuilder candidates = new StringBuilder();
+        for (int cls = 1; cls < classCount; cls++) {
+            if (literals.nextNode(0, cls) != 0) {
+                candidates.append(classChars[cls]);
+            }
         }
-        return new TokenResult("[NUMBER: " + code.substring(start, pos) + "]", pos);
+        return new LiteralPrefilter(candidates.toString().toCharArray());
     }
 
-    private TokenResult processIdentifier(int pos, String code) {
-        int start = pos;
-        while (pos < code.length() && isAlphaNumeric(code.charAt(pos))) {
-            pos++;
+    public void writeTo(DataOutputStream out) throws IOException {
+        AutomatonImage.writeStrings(out, patterns);
+        for (String[] patternParts : parts) {
+            AutomatonImage.writeStrings(out, patternParts);
         }
-        String word = code.substring(start, pos);
-        if (keywords.contains(word)) {
-            return new TokenResult("[KEYWORD: " + word + "]", pos);
-        } else {
-            return new TokenResult("[IDENTIFIER: " + word + "]", pos);
+        out.writeInt(classCount);
+        AutomatonImage.writeInts(out, asciiClasses);
+        AutomatonImage.writeChars(out, nonAsciiChars);
+        AutomatonImage.writeInts(out, nonAsciiClasses);
+        AutomatonImage.writeInts(out, transitions);
+        AutomatonImage.writeBooleans(out, accepting);
+        AutomatonImage.writeInts(out, statePart);
+        AutomatonImage.writeInts(out, startStates);
+        AutomatonImage.writeInts(out, acceptStates);
+        AutomatonImage.writeInts(out, minLengths);
+        literals.writeTo(out);
+    }
+
+    // Every table is checked here, so a malformed image fails to load instead of failing mid-scan
+    public static CompiledPatternSet readFrom(ByteBuffer in) throws IOException {
+        String[] patterns = AutomatonImage.readStrings(in);
+        String[][] parts = new String[patterns.length][];
+        int maxParts = 0;
+        for (int p = 0; p < patterns.length; p++) {
+            parts[p] = AutomatonImage.readStrings(in);
+            maxParts = Math.max(maxParts, parts[p].length);
+            for (String part : parts[p]) {
+                AutomatonImage.check(!part.isEmpty(), "literal part");
+            }
         }
+        int classCount = in.getInt();
+        int[] asciiClasses = AutomatonImage.readInts(in);
+        char[] nonAsciiChars = AutomatonImage.readChars(in);
+        int[] nonAsciiClasses = AutomatonImage.readInts(in);
+        int[] transitions = AutomatonImage.readInts(in);
+        boolean[] accepting = AutomatonImage.readBooleans(in);
+        int[] statePart = AutomatonImage.readInts(in);
+        int[] startStates = AutomatonImage.readInts(in);
+        int[] acceptStates = AutomatonImage.readInts(in);
+        int[] minLengths = AutomatonImage.readInts(in);
+
+        AutomatonImage.check(classCount >= 1 && asciiClasses.length == 128
+                && nonAsciiClasses.length == nonAsciiChars.length, "pattern class tables");
+        AutomatonImage.checkRange(asciiClasses, classCount, 1, "pattern classes");
+        AutomatonImage.checkRange(nonAsciiClasses, classCount, 1, "pattern classes");
+        AutomatonImage.checkSorted(nonAsciiChars, "pattern characters");
+        AutomatonImage.check((long) accepting.length * classCount == transitions.length
+                && statePart.length == accepting.length, "pattern transition table size");
+        AutomatonImage.checkRange(transitions, transitions.length, classCount, "pattern transitions");
+        AutomatonImage.checkRange(statePart, maxParts + 1, 1, "pattern state parts");
+        AutomatonImage.check(startStates.length == patterns.length && acceptStates.length == patterns.length
+                && minLengths.length == patterns.length, "pattern state table size");
+        AutomatonImage.checkRange(startStates, transitions.length, classCount, "pattern start states");
+        AutomatonImage.checkRange(acceptStates, transitions.length, classCount, "pattern accept states");
+        AutomatonImage.checkRange(minLengths, Integer.MAX_VALUE, 1, "pattern lengths");
+
+        return new CompiledPatternSet(patterns, parts, asciiClasses, nonAsciiChars, nonAsciiClasses, classCount,
+                transitions, accepting, statePart, startStates, acceptStates, minLengths,
+                LiteralAutomaton.readFrom(in, classCount, parts));
     }
 
-    private TokenResult processOperator(int pos, String code) {
-        if (pos < code.length() - 1 && code.substring(pos, pos + 2).equals("==")) {
-            return new TokenResult("[OPERATOR: ==]", pos + 2);
-        } else {
-            return new TokenResult("[OPERATOR: " + code.charAt(pos) + "]", pos + 1);
+    public PatternMatchResult createResult(int patternIndex, boolean matched) {
+        PatternMatchResult result = new PatternMatchResult(matched, patterns[patternIndex]);
+        if (matched) {
+            for (String part : parts[patternIndex]) {
+                result.addMatchedSubstring(part);
+            }
         }
+        return result;
     }
 
-    private TokenResult processSymbol(int pos, String code) {
-        return new TokenResult("[SYMBOL: " + code.charAt(pos) + "]", pos + 1);
+    public int classOf(char c) {
+        if (c < 128) {
+            return asciiClasses[c];
+        }
+        int index = Arrays.binarySearch(nonAsciiChars, c);
+        return index >= 0 ? nonAsciiClasses[index] : 0;
     }
 
-    public List<PatternMatchResult> matchPatterns(String input) {
-        long startTime=System.nanoTime();List<PatternMatchResult>results=new ArrayList<PatternMatchResult>();
+    public int nextState(int state, char c) {
+        return transitions[state + classOf(c)];
+    }
 
-        for(String pattern:regexPatterns){resetAuxiliaryVars();currentPattern=pattern;
+    public boolean isAccepting(int state) {
+        return accepting[state / classCount];
+    }
 
-        // Judging Instrument: Pattern complexity analysis for intelligent routing
-        String patternComplexity=analyzePatternComplexity(pattern);metrics.incrementMemoryAccesses();
+    // Index of the literal part the state is currently matching (part count once accepted)
+    public int partOf(int state) {
+        return statePart[state / classCount];
+    }
+}
 
-        PatternMatchResult result=hfaPatternMatch(input,pattern,patternComplexity);results.add(result);}
+// Literal Automaton Class (Aho-Corasick over all pattern literals)
+class LiteralAutomaton {
+    private final int classCount;
+    private final int[] transitions;
+
+    // Literal parts ending at each node, flattened: outputStart[node] .. outputStart[node + 1]
+    private final int[] outputStart;
+    private final int[] outputPattern;
+    private final int[] outputPart;
+    private final int[] outputLength;
+
+    LiteralAutomaton(int classCount, int[] transitions, int[] outputStart, int[] outputPattern, int[] outputPart,
+            int[] outputLength) {
+        this.classCount = classCount;
+        this.transitions = transitions;
+        this.outputStart = outputStart;
+        this.outputPattern = outputPattern;
+        this.outputPart = outputPart;
+        this.outputLength = outputLength;
+    }
 
-        long endTime=System.nanoTime();metrics.setMatchingTime(metrics.getMatchingTime()+(endTime-startTime)/1_000_000.0);return results;
+    public int getNodeCount() {
+        return outputStart.length - 1;
     }
 
-    // Judging Instrument: Analyze pattern complexity for routing decisions
-    private String analyzePatternComplexity(String pattern) {
-        if (pattern.equals(".*ab.*cd") || pattern.equals(".*ef.*gh")) {
-            return "SIMPLE_PAIR";
-        } else if (pattern.equals(".*abc.*def")) {
-            return "MEDIUM_PAIR";
-        } else if (pattern.equals(".*abcde.*fghnm")) {
-            return "COMPLEX_PAIR";
+    public int getStorageBytes() {
+        return (transitions.length + outputStart.length + outputPattern.length * 3) * Integer.BYTES;
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(classCount);
+        AutomatonImage.writeInts(out, transitions);
+        AutomatonImage.writeInts(out, outputStart);
+        AutomatonImage.writeInts(out, outputPattern);
+        AutomatonImage.writeInts(out, outputPart);
+        AutomatonImage.writeInts(out, outputLength);
+    }
+
+    // Outputs must name existing pattern parts, which the pattern set passes in
+    public static LiteralAutomaton readFrom(ByteBuffer in, int expectedClassCount, String[][] parts)
+            throws IOException {
+        int classCount = in.getInt();
+        int[] transitions = AutomatonImage.readInts(in);
+        int[] outputStart = AutomatonImage.readInts(in);
+        int[] outputPattern = AutomatonImage.readInts(in);
+        int[] outputPart = AutomatonImage.readInts(in);
+        int[] outputLength = AutomatonImage.readInts(in);
+
+        AutomatonImage.check(classCount == expectedClassCount && outputStart.length >= 2
+                && (long) (outputStart.length - 1) * classCount == transitions.length, "literal automaton size");
+        AutomatonImage.checkRange(transitions, outputStart.length - 1, 1, "literal transitions");
+        AutomatonImage.check(outputStart[0] == 0 && outputStart[outputStart.length - 1] == outputPattern.length
+                && outputPart.length == outputPattern.length && outputLength.length == outputPattern.length,
+                "literal outputs");
+        for (int node = 1; node < outputStart.length; node++) {
+            AutomatonImage.check(outputStart[node - 1] <= outputStart[node], "literal outputs");
+        }
+        AutomatonImage.checkRange(outputPattern, parts.length, 1, "literal output patterns");
+        for (int k = 0; k < outputPattern.length; k++) {
+            String[] patternParts = parts[outputPattern[k]];
+            AutomatonImage.check(outputPart[k] >= 0 && outputPart[k] < patternParts.length
+                    && outputLength[k] == patternParts[outputPart[k]].length(), "literal output parts");
         }
-        return "UNKNOWN";
+        return new LiteralAutomaton(classCount, transitions, outputStart, outputPattern, outputPart, outputLength);
     }
 
-    // HFA Pattern Matching with Judging Instruments
-    private PatternMatchResult hfaPatternMatch(String input, String pattern, String complexity) {
-        PatternMatchResult result = new PatternMatchResult(false, pattern);
-        HFAState currentState = HFAState.START;
+    public int nextNode(int node, int charClass) {
+        return transitions[node * classCount + charClass];
+    }
 
-        // Use judging instruments to determine optimal processing path
-        useIntelligentRouting = shouldUseIntelligentRouting(complexity);
-        metrics.incrementMemoryAccesses();
+    public int getOutputStart(int node) {
+        return outputStart[node];
+    }
 
-        for (int i = 0; i < input.length(); i++) {
-            char c = input.charAt(i);
+    public int getOutputEnd(int node) {
+        return outputStart[node + 1];
+    }
 
-            // Core HFA Logic: Use current state + judging instruments + auxiliary vars +
-            // input char
-            HFAState nextState = determineNextState(currentState, c, pattern, i, input);
+    public int getOutputPattern(int output) {
+        return outputPattern[output];
+    }
 
-            if (nextState != currentState) {
-                metrics.incrementStateTransitions();
-                currentState = nextState;
-            }
+    public int getOutputPart(int output) {
+        return outputPart[output];
+    }
 
-            // Check if pattern is matched
-            if (currentState == HFAState.ACCEPT) {
-                result = new PatternMatchResult(true, pattern);
-                result.addMatchedSubstring(extractFirstPart(pattern));
-                result.addMatchedSubstring(extractSecondPart(pattern));
-                break;
-            }
+    public int getOutputLength(int output) {
+        return outputLength[output];
+    }
+}
+
+// Pattern Compiler Class: turns .*lit1.*lit2(.*lit3...) rules into dense HFA tables
+class PatternCompiler {
+    private static final String REGEX_META = ".*+?[](){}|^$";
+
+    public static CompiledPatternSet compile(List<String> patterns) {
+        return compile(patterns, true);
+    }
+
+    public static CompiledPatternSet compile(List<String> patterns, boolean minimize) {
+        String[] patternArray = patterns.toArray(new String[0]);
+        String[][] parts = new String[patternArray.length][];
+        for (int p = 0; p < patternArray.length; p++) {
+            parts[p] = parsePattern(patternArray[p]);
+        }
+        return compile(patternArray, parts, minimize);
+    }
+
+    // Tables for UTF-8 input: every literal part becomes its UTF-8 bytes, one char per byte, so scanners
+    // run on raw bytes read as (char) (b & 0xFF) and report byte offsets. UTF-8 is self-synchronizing, so a
+    // literal's byte sequence only occurs where the decoded text holds the literal.
+    public static CompiledPatternSet compileUtf8(List<String> patterns) {
+        String[] patternArray = patterns.toArray(new String[0]);
+        String[][] parts = new String[patternArray.length][];
+        for (int p = 0; p < patternArray.length; p++) {
+            parts[p] = parsePattern(patternArray[p]);
+            for (int k = 0; k < parts[p].length; k++) {
+                parts[p][k] = new String(parts[p][k].getBytes(StandardCharsets.UTF_8), StandardCharsets.ISO_8859_1);
+            }
+        }
+        return compile(patternArray, parts, true);
+    }
+
+    private static CompiledPatternSet compile(String[] patternArray, String[][] parts, boolean minimize) {
+        int patternCount = patternArray.length;
+        TreeSet<Character> alphabet = new TreeSet<Character>();
+        int totalStates = 0;
+
+        for (int p = 0; p < patternCount; p++) {
+            int length = 0;
+            for (String part : parts[p]) {
+                for (int i = 0; i < part.length(); i++) {
+                    alphabet.add(part.charAt(i));
+                }
+                length += part.length();
+            }
+            totalStates += length + 1;
+        }
+
+        // Judging Instrument: collapse the alphabet into equivalence classes
+        int[] asciiClasses = new int[128];
+        int nonAsciiCount = 0;
+        for (char c : alphabet) {
+            if (c >= 128) {
+                nonAsciiCount++;
+            }
+        }
+        char[] nonAsciiChars = new char[nonAsciiCount];
+        int[] nonAsciiClasses = new int[nonAsciiCount];
+        int classCount = 1;
+        int nonAsciiIndex = 0;
+        for (char c : alphabet) {
+            if (c < 128) {
+                asciiClasses[c] = classCount;
+            } else {
+                nonAsciiChars[nonAsciiIndex] = c;
+                nonAsciiClasses[nonAsciiIndex] = classCount;
+                nonAsciiIndex++;
+            }
+            classCount++;
+        }
+
+        int[] transitions = new int[totalStates * classCount];
+        boolean[] accepting = new boolean[totalStates];
+        int[] statePart = new int[totalStates];
+        int[] startStates = new int[patternCount];
+        int[] acceptStates = new int[patternCount];
+        int[] minLengths = new int[patternCount];
+
+        int[][][] partClasses = new int[patternCount][][];
+        for (int p = 0; p < patternCount; p++) {
+            partClasses[p] = new int[parts[p].length][];
+            for (int partIndex = 0; partIndex < parts[p].length; partIndex++) {
+                String part = parts[p][partIndex];
+                partClasses[p][partIndex] = new int[part.length()];
+                for (int i = 0; i < part.length(); i++) {
+                    char c = part.charAt(i);
+                    partClasses[p][partIndex][i] = c < 128 ? asciiClasses[c]
+                            : nonAsciiClasses[Arrays.binarySearch(nonAsciiChars, c)];
+                }
+            }
+        }
+
+        int base = 0;
+        for (int p = 0; p < patternCount; p++) {
+            int offset = 0;
+            for (int partIndex = 0; partIndex < parts[p].length; partIndex++) {
+                String part = parts[p][partIndex];
+                int[][] dfa = buildLiteralDfa(partClasses[p][partIndex], classCount);
+                for (int j = 0; j < part.length(); j++) {
+                    int state = base + offset + j;
+                    statePart[state] = partIndex;
+                    for (int cls = 0; cls < classCount; cls++) {
+                        transitions[state * classCount + cls] = (base + offset + dfa[j][cls]) * classCount;
+                    }
+                }
+                offset += part.length();
+            }
+
+            // Accept state is absorbing: .* after the last literal consumes the rest
+            int acceptState = base + offset;
+            accepting[acceptState] = true;
+            statePart[acceptState] = parts[p].length;
+            for (int cls = 0; cls < classCount; cls++) {
+                transitions[acceptState * classCount + cls] = acceptState * classCount;
+            }
+
+            startStates[p] = base * classCount;
+            acceptStates[p] = acceptState * classCount;
+            minLengths[p] = offset;
+            base += offset + 1;
+        }
+
+        if (minimize) {
+            int[] blockOf = minimize(transitions, accepting, statePart, classCount);
+            int blockCount = 0;
+            for (int block : blockOf) {
+                blockCount = Math.max(blockCount, block + 1);
+            }
+            int[] minimized = new int[blockCount * classCount];
+            boolean[] minimizedAccepting = new boolean[blockCount];
+            int[] minimizedPart = new int[blockCount];
+            for (int state = 0; state < totalStates; state++) {
+                int block = blockOf[state];
+                minimizedAccepting[block] = accepting[state];
+                minimizedPart[block] = statePart[state];
+                for (int cls = 0; cls < classCount; cls++) {
+                    minimized[block * classCount + cls] = blockOf[transitions[state * classCount + cls] / classCount]
+                            * classCount;
+                }
+            }
+            for (int p = 0; p < patternCount; p++) {
+                startStates[p] = blockOf[startStates[p] / classCount] * classCount;
+                acceptStates[p] = blockOf[acceptStates[p] / classCount] * classCount;
+            }
+            transitions = minimized;
+            accepting = minimizedAccepting;
+            statePart = minimizedPart;
+        }
+
+        LiteralAutomaton literals = buildLiteralAutomaton(partClasses, classCount);
+
+        return new CompiledPatternSet(patternArray, parts, asciiClasses, nonAsciiChars, nonAsciiClasses,
+                classCount, transitions, accepting, statePart, startStates, acceptStates, minLengths, literals);
+    }
+
+    // Splits ".*lit1.*lit2" into its literal parts; backslash escapes regex metacharacters
+    public static String[] parsePattern(String pattern) {
+        if (!pattern.startsWith(".*")) {
+            throw new IllegalArgumentException("Pattern must start with .*: " + pattern);
+        }
+
+        List<String> parts = new ArrayList<String>();
+        StringBuilder literal = new StringBuilder();
+        int pos = 2;
+        while (pos < pattern.length()) {
+            char c = pattern.charAt(pos);
+            if (c == '\\' && pos + 1 < pattern.length()) {
+                literal.append(pattern.charAt(pos + 1));
+                pos += 2;
+            } else if (c == '.' && pos + 1 < pattern.length() && pattern.charAt(pos + 1) == '*') {
+                if (literal.length() > 0) {
+                    parts.add(literal.toString());
+                    literal.setLength(0);
+                }
+                pos += 2;
+            } else if (REGEX_META.indexOf(c) >= 0 || c == '\\') {
+                throw new IllegalArgumentException("Unsupported regex construct '" + c + "' in pattern: " + pattern);
+            } else {
+                literal.append(c);
+                pos++;
+            }
+        }
+        if (literal.length() > 0) {
+            parts.add(literal.toString());
+        }
+
+        return parts.toArray(new String[0]);
+    }
+
+    // Hopcroft partition refinement; returns the block (minimized state) of every state. States only
+    // share a block if they agree on acceptance and on the literal part they track, so partOf survives
+    private static int[] minimize(int[] transitions, boolean[] accepting, int[] statePart, int classCount) {
+        int n = accepting.length;
+
+        // Predecessors per (class, target), flattened: preds[predStart[cls * n + t] .. predStart[cls * n + t + 1])
+        int[] predStart = new int[classCount * n + 1];
+        for (int state = 0; state < n; state++) {
+            for (int cls = 0; cls < classCount; cls++) {
+                predStart[cls * n + transitions[state * classCount + cls] / classCount + 1]++;
+            }
+        }
+        for (int i = 0; i < classCount * n; i++) {
+            predStart[i + 1] += predStart[i];
+        }
+        int[] preds = new int[n * classCount];
+        int[] fill = Arrays.copyOf(predStart, classCount * n);
+        for (int state = 0; state < n; state++) {
+            for (int cls = 0; cls < classCount; cls++) {
+                preds[fill[cls * n + transitions[state * classCount + cls] / classCount]++] = state;
+            }
+        }
+
+        // Blocks are contiguous ranges of elements; marked states are swapped to the front of their block
+        int[] elements = new int[n];
+        int[] location = new int[n];
+        int[] blockOf = new int[n];
+        int[] blockStart = new int[n + 1];
+        int[] blockEnd = new int[n + 1];
+        int[] markedCount = new int[n + 1];
+        int blockCount = 0;
+
+        Map<Integer, List<Integer>> initial = new TreeMap<Integer, List<Integer>>();
+        for (int state = 0; state < n; state++) {
+            int key = statePart[state] * 2 + (accepting[state] ? 1 : 0);
+            List<Integer> members = initial.get(key);
+            if (members == null) {
+                members = new ArrayList<Integer>();
+                initial.put(key, members);
+            }
+            members.add(state);
+        }
+        int next = 0;
+        for (List<Integer> members : initial.values()) {
+            blockStart[blockCount] = next;
+            for (int state : members) {
+                elements[next] = state;
+                location[state] = next;
+                blockOf[state] = blockCount;
+                next++;
+            }
+            blockEnd[blockCount] = next;
+            blockCount++;
+        }
+
+        int[] worklist = new int[n + 1];
+        boolean[] pending = new boolean[n + 1];
+        int worklistSize = 0;
+        for (int block = 0; block < blockCount; block++) {
+            worklist[worklistSize++] = block;
+            pending[block] = true;
+        }
+
+        int[] splitter = new int[n];
+        int[] touched = new int[n];
+        while (worklistSize > 0) {
+            int block = worklist[--worklistSize];
+            pending[block] = false;
+            int splitterSize = blockEnd[block] - blockStart[block];
+            System.arraycopy(elements, blockStart[block], splitter, 0, splitterSize);
+
+            for (int cls = 0; cls < classCount; cls++) {
+                int touchedCount = 0;
+                for (int i = 0; i < splitterSize; i++) {
+                    int target = splitter[i];
+                    for (int k = predStart[cls * n + target]; k < predStart[cls * n + target + 1]; k++) {
+                        int state = preds[k];
+                        int b = blockOf[state];
+                        int markedEnd = blockStart[b] + markedCount[b];
+                        if (location[state] < markedEnd) {
+                            continue;
+                        }
+                        if (markedCount[b] == 0) {
+                            touched[touchedCount++] = b;
+                        }
+                        // Swap the state into the marked prefix of its block
+                        int other = elements[markedEnd];
+                        elements[markedEnd] = state;
+                        elements[location[state]] = other;
+                        location[other] = location[state];
+                        location[state] = markedEnd;
+                        markedCount[b]++;
+                    }
+                }
+
+                for (int t = 0; t < touchedCount; t++) {
+                    int b = touched[t];
+                    int marked = markedCount[b];
+                    markedCount[b] = 0;
+                    if (marked == blockEnd[b] - blockStart[b]) {
+                        continue;
+                    }
+                    int created = blockCount++;
+                    blockStart[created] = blockStart[b];
+                    blockEnd[created] = blockStart[b] + marked;
+                    blockStart[b] = blockEnd[created];
+                    for (int i = blockStart[created]; i < blockEnd[created]; i++) {
+                        blockOf[elements[i]] = created;
+                    }
+                    if (pending[b]) {
+                        worklist[worklistSize++] = created;
+                        pending[created] = true;
+                    } else {
+                        int smaller = marked <= blockEnd[b] - blockStart[b] ? created : b;
+                        worklist[worklistSize++] = smaller;
+                        pending[smaller] = true;
+                    }
+                }
+            }
+        }
+
+        // Number blocks in order of their first state so minimized tables keep the original layout
+        int[] renumber = new int[blockCount];
+        Arrays.fill(renumber, -1);
+        int minimizedCount = 0;
+        for (int state = 0; state < n; state++) {
+            if (renumber[blockOf[state]] < 0) {
+                renumber[blockOf[state]] = minimizedCount++;
+            }
+            blockOf[state] = renumber[blockOf[state]];
+        }
+        return blockOf;
+    }
+
+    // KMP automaton for one literal: dfa[j][cls] = characters matched after reading cls in state j
+    private static int[][] buildLiteralDfa(int[] literal, int classCount) {
+        int[][] dfa = new int[literal.length][classCount];
+        dfa[0][literal[0]] = 1;
+        for (int restart = 0, j = 1; j < literal.length; j++) {
+            for (int cls = 0; cls < classCount; cls++) {
+                dfa[j][cls] = dfa[restart][cls];
+            }
+            dfa[j][literal[j]] = j + 1;
+            restart = dfa[restart][literal[j]];
+        }
+        return dfa;
+    }
+
+    // Aho-Corasick automaton over every literal part of every pattern
+    private static LiteralAutomaton buildLiteralAutomaton(int[][][] partClasses, int classCount) {
+        List<int[]> gotoTable = new ArrayList<int[]>();
+        List<List<int[]>> nodeOutputs = new ArrayList<List<int[]>>();
+        gotoTable.add(newTrieNode(classCount));
+        nodeOutputs.add(new ArrayList<int[]>());
+
+        for (int p = 0; p < partClasses.length; p++) {
+            for (int partIndex = 0; partIndex < partClasses[p].length; partIndex++) {
+                int[] literal = partClasses[p][partIndex];
+                int node = 0;
+                for (int cls : literal) {
+                    if (gotoTable.get(node)[cls] < 0) {
+                        gotoTable.get(node)[cls] = gotoTable.size();
+                        gotoTable.add(newTrieNode(classCount));
+                        nodeOutputs.add(new ArrayList<int[]>());
+                    }
+                    node = gotoTable.get(node)[cls];
+                }
+                nodeOutputs.get(node).add(new int[] { p, partIndex, literal.length });
+            }
+        }
+
+        // Breadth-first pass turns the trie into a complete DFA via failure links
+        int nodeCount = gotoTable.size();
+        int[] fail = new int[nodeCount];
+        int[] queue = new int[nodeCount];
+        int head = 0;
+        int tail = 0;
+        int[] root = gotoTable.get(0);
+        for (int cls = 0; cls < classCount; cls++) {
+            if (root[cls] < 0) {
+                root[cls] = 0;
+            } else {
+                queue[tail++] = root[cls];
+            }
+        }
+        while (head < tail) {
+            int node = queue[head++];
+            nodeOutputs.get(node).addAll(nodeOutputs.get(fail[node]));
+            int[] row = gotoTable.get(node);
+            for (int cls = 0; cls < classCount; cls++) {
+                int child = row[cls];
+                if (child < 0) {
+                    row[cls] = gotoTable.get(fail[node])[cls];
+                } else {
+                    fail[child] = gotoTable.get(fail[node])[cls];
+                    queue[tail++] = child;
+                }
+            }
+        }
+
+        int[] transitions = new int[nodeCount * classCount];
+        int[] outputStart = new int[nodeCount + 1];
+        int outputCount = 0;
+        for (int node = 0; node < nodeCount; node++) {
+            System.arraycopy(gotoTable.get(node), 0, transitions, node * classCount, classCount);
+            outputStart[node] = outputCount;
+            outputCount += nodeOutputs.get(node).size();
+        }
+        outputStart[nodeCount] = outputCount;
+
+        int[] outputPattern = new int[outputCount];
+        int[] outputPart = new int[outputCount];
+        int[] outputLength = new int[outputCount];
+        for (int node = 0; node < nodeCount; node++) {
+            int k = outputStart[node];
+            for (int[] output : nodeOutputs.get(node)) {
+                outputPattern[k] = output[0];
+                outputPart[k] = output[1];
+                outputLength[k] = output[2];
+                k++;
+            }
+        }
+
+        return new LiteralAutomaton(classCount, transitions, outputStart, outputPattern, outputPart, outputLength);
+    }
+
+    private static int[] newTrieNode(int classCount) {
+        int[] row = new int[classCount];
+        Arrays.fill(row, -1);
+        return row;
+    }
+}
+
+// Match Result Set Class: reusable results for a whole pattern set, with the start and end offsets of
+// every literal part of each matched pattern kept as primitive ints
+class MatchResultSet {
+    private final CompiledPatternSet compiledPatterns;
+
+    // Part offsets flattened per pattern: parts of pattern p start at partBase[p]
+    private final int[] partBase;
+    private final int[] partStarts;
+    private final int[] partEnds;
+    private final long[] matchedBits;
+    private int matchedCount;
+
+    public MatchResultSet(CompiledPatternSet compiledPatterns) {
+        this.compiledPatterns = compiledPatterns;
+        int patternCount = compiledPatterns.getPatternCount();
+        partBase = new int[patternCount + 1];
+        for (int p = 0; p < patternCount; p++) {
+            partBase[p + 1] = partBase[p] + compiledPatterns.getPartCount(p);
+        }
+        partStarts = new int[partBase[patternCount]];
+        partEnds = new int[partBase[patternCount]];
+        matchedBits = new long[(patternCount + 63) >>> 6];
+    }
+
+    public boolean isFor(CompiledPatternSet patterns) {
+        return compiledPatterns == patterns;
+    }
+
+    // Offsets of unmatched patterns are never read, so clearing only drops the matched bits
+    public void clear() {
+        Arrays.fill(matchedBits, 0L);
+        matchedCount = 0;
+    }
+
+    void setPartEnd(int patternIndex, int partIndex, int end) {
+        int k = partBase[patternIndex] + partIndex;
+        partEnds[k] = end;
+        partStarts[k] = end - compiledPatterns.getPart(patternIndex, partIndex).length();
+    }
+
+    void setMatched(int patternIndex) {
+        if (!isMatched(patternIndex)) {
+            matchedBits[patternIndex >>> 6] |= 1L << patternIndex;
+            matchedCount++;
+        }
+    }
+
+    public int getPatternCount() {
+        return compiledPatterns.getPatternCount();
+    }
+
+    public String getPattern(int patternIndex) {
+        return compiledPatterns.getPattern(patternIndex);
+    }
+
+    public int getPartCount(int patternIndex) {
+        return partBase[patternIndex + 1] - partBase[patternIndex];
+    }
+
+    public boolean isMatched(int patternIndex) {
+        return (matchedBits[patternIndex >>> 6] & (1L << patternIndex)) != 0;
+    }
+
+    public int getMatchedCount() {
+        return matchedCount;
+    }
+
+    public int getPartStart(int patternIndex, int partIndex) {
+        return isMatched(patternIndex) ? partStarts[partBase[patternIndex] + partIndex] : -1;
+    }
+
+    public int getPartEnd(int patternIndex, int partIndex) {
+        return isMatched(patternIndex) ? partEnds[partBase[patternIndex] + partIndex] : -1;
+    }
+
+    // Start of the first literal part; a pattern without literals matches at 0
+    public int getMatchStart(int patternIndex) {
+        if (!isMatched(patternIndex)) {
+            return -1;
+        }
+        return getPartCount(patternIndex) == 0 ? 0 : partStarts[partBase[patternIndex]];
+    }
+
+    // End (exclusive) of the last literal part
+    public int getMatchEnd(int patternIndex) {
+        if (!isMatched(patternIndex)) {
+            return -1;
+        }
+        return getPartCount(patternIndex) == 0 ? 0 : partEnds[partBase[patternIndex + 1] - 1];
+    }
+}
+
+// Literal Prefilter Class: finds the next position whose character can start a literal part, so the
+// automaton only runs from candidate positions
+class LiteralPrefilter {
+    // Few candidates are searched one character at a time with String.indexOf (vectorized by the JIT)
+    private static final int MAX_SEARCH_CHARS = 4;
+    // Raw bytes are tested eight at a time (SWAR) when there are at most this many candidate bytes
+    private static final int MAX_SWAR_BYTES = 8;
+    private static final long LOW_SEVEN_BITS = 0x7F7F7F7F7F7F7F7FL;
+    private static final long ONES = 0x0101010101010101L;
+
+    private final boolean[] asciiCandidates;
+    private final char[] nonAsciiCandidates;
+    private final boolean[] byteCandidates;
+    private final char[] searchChars;
+    private final long[] swarPatterns;
+
+    // Next occurrence of each search character in the current input: -2 unknown, -1 none left. Valid while
+    // searches over the same text move forward, e.g. across the records of one batch buffer, until release()
+    private final int[] nextOccurrence;
+    private String cursorText;
+    private int cursorFrom;
+
+    public LiteralPrefilter(char[] candidates) {
+        char[] sorted = candidates.clone();
+        Arrays.sort(sorted);
+        asciiCandidates = new boolean[128];
+        byteCandidates = new boolean[256];
+        StringBuilder nonAscii = new StringBuilder();
+        int byteCount = 0;
+        for (char c : sorted) {
+            if (c < 128) {
+                asciiCandidates[c] = true;
+            } else {
+                nonAscii.append(c);
+            }
+            if (c < 256) {
+                byteCandidates[c] = true;
+                byteCount++;
+            }
+        }
+        nonAsciiCandidates = nonAscii.toString().toCharArray();
+        searchChars = sorted.length <= MAX_SEARCH_CHARS ? sorted : null;
+        nextOccurrence = new int[sorted.length];
+
+        if (byteCount <= MAX_SWAR_BYTES) {
+            swarPatterns = new long[byteCount];
+            int k = 0;
+            for (char c : sorted) {
+                if (c < 256) {
+                    swarPatterns[k++] = c * ONES;
+                }
+            }
+        } else {
+            swarPatterns = null;
+        }
+    }
+
+    // Ends the scan: drops the cursor's reference to the text, so a pooled matcher does not keep it alive
+    public void release() {
+        cursorText = null;
+    }
+
+    public boolean isCandidate(char c) {
+        return c < 128 ? asciiCandidates[c] : Arrays.binarySearch(nonAsciiCandidates, c) >= 0;
+    }
+
+    // First candidate position in [from, end), or end when there is none
+    public int next(CharSequence input, int from, int end) {
+        if (searchChars != null && input instanceof String) {
+            String text = (String) input;
+            if (text != cursorText || from < cursorFrom) {
+                cursorText = text;
+                Arrays.fill(nextOccurrence, -2);
+            }
+            cursorFrom = from;
+            int best = end;
+            for (int k = 0; k < searchChars.length; k++) {
+                int pos = nextOccurrence[k];
+                if (pos != -1 && pos < from) {
+                    pos = text.indexOf(searchChars[k], from);
+                    nextOccurrence[k] = pos;
+                }
+                if (pos >= 0 && pos < best) {
+                    best = pos;
+                }
+            }
+            return best;
+        }
+
+        for (int i = from; i < end; i++) {
+            if (isCandidate(input.charAt(i))) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    // First candidate byte position in [from, end), or end when there is none
+    public int next(ByteBuffer input, int from, int end) {
+        int i = from;
+        if (swarPatterns != null) {
+            boolean bigEndian = input.order() == ByteOrder.BIG_ENDIAN;
+            for (; i + Long.BYTES <= end; i += Long.BYTES) {
+                long word = input.getLong(i);
+                long found = 0;
+                for (long pattern : swarPatterns) {
+                    found |= zeroBytes(word ^ pattern);
+                }
+                if (found != 0) {
+                    return i + (bigEndian ? Long.numberOfLeadingZeros(found) : Long.numberOfTrailingZeros(found))
+                            / Byte.SIZE;
+                }
+            }
+        }
+        for (; i < end; i++) {
+            if (byteCandidates[input.get(i) & 0xFF]) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    // High bit set in exactly the bytes of x that are zero (no borrow between bytes)
+    private static long zeroBytes(long x) {
+        return ~(((x & LOW_SEVEN_BITS) + LOW_SEVEN_BITS) | x | LOW_SEVEN_BITS);
+    }
+}
+
+// Multi-Pattern Scanner Class: advances every compiled pattern together in one pass
+class MultiPatternScanner {
+    private final CompiledPatternSet compiledPatterns;
+    private final LiteralAutomaton literals;
+    private final LiteralPrefilter prefilter;
+    private final PerformanceMetrics metrics;
+
+    // Per-pattern progress registers: next literal part and earliest position it may start at
+    private final int[] progress;
+    private final long[] readyAt;
+
+    // Accepted patterns as packed bit registers, one bit per pattern
+    private final long[] matchedBits;
+    private final long[] emptyPatternBits;
+    private final int emptyPatternCount;
+    private final int patternCount;
+    private int matchedCount;
+
+    // Judging Instrument: the scan stops once this many patterns have matched (early-exit queries)
+    private int matchLimit;
+
+    // Patterns whose registers moved since the last reset, so a reset only touches those
+    private final int[] touched;
+    private int touchedCount;
+
+    // Input offsets of each match: start of the first literal, end (exclusive) of the last one
+    private final long[] matchStart;
+    private final long[] matchEnd;
+
+    // End (exclusive) of every accepted literal part, flattened per pattern from partBase[p]
+    private final int[] partBase;
+    private final long[] partEnds;
+
+    private int node;
+    private long position;
+
+    // Scan counters are kept locally and flushed to the shared metrics after each feed
+    private boolean recording;
+    private long scanTransitions;
+    private long scanAccesses;
+
+    public MultiPatternScanner(CompiledPatternSet compiledPatterns, PerformanceMetrics metrics) {
+        this.compiledPatterns = compiledPatterns;
+        this.literals = compiledPatterns.getLiteralAutomaton();
+        this.prefilter = compiledPatterns.createLiteralPrefilter();
+        this.metrics = metrics;
+        this.progress = new int[compiledPatterns.getPatternCount()];
+        this.readyAt = new long[compiledPatterns.getPatternCount()];
+        this.patternCount = compiledPatterns.getPatternCount();
+        this.matchedBits = new long[(patternCount + 63) >>> 6];
+        this.matchStart = new long[compiledPatterns.getPatternCount()];
+        this.matchEnd = new long[compiledPatterns.getPatternCount()];
+        this.touched = new int[patternCount];
+        this.partBase = new int[patternCount + 1];
+        for (int p = 0; p < patternCount; p++) {
+            partBase[p + 1] = partBase[p] + compiledPatterns.getPartCount(p);
+        }
+        this.partEnds = new long[partBase[patternCount]];
+        Arrays.fill(matchStart, -1);
+        Arrays.fill(matchEnd, -1);
+
+        // Patterns without literals match everything, from offset 0
+        this.emptyPatternBits = new long[matchedBits.length];
+        int empty = 0;
+        for (int p = 0; p < patternCount; p++) {
+            if (compiledPatterns.getPartCount(p) == 0) {
+                emptyPatternBits[p >>> 6] |= 1L << p;
+                matchStart[p] = 0;
+                matchEnd[p] = 0;
+                empty++;
+            }
+        }
+        this.emptyPatternCount = empty;
+        reset();
+    }
+
+    public void reset() {
+        reset(metrics.beginScan());
+    }
+
+    public void reset(boolean recording) {
+        reset(recording, patternCount);
+    }
+
+    public void reset(boolean recording, int matchLimit) {
+        this.recording = recording;
+        this.matchLimit = matchLimit;
+        node = 0;
+        position = 0;
+        for (int i = 0; i < touchedCount; i++) {
+            int p = touched[i];
+            progress[p] = 0;
+            readyAt[p] = 0;
+            matchStart[p] = -1;
+            matchEnd[p] = -1;
+        }
+        touchedCount = 0;
+        System.arraycopy(emptyPatternBits, 0, matchedBits, 0, matchedBits.length);
+        matchedCount = emptyPatternCount;
+    }
+
+    public void feed(CharSequence input, int start, int end) {
+        for (int i = start; i < end; i++) {
+            // Judging Instrument: nothing left to decide once the query has seen enough matches
+            if (matchedCount >= matchLimit) {
+                position += end - i;
+                break;
+            }
+            // Judging Instrument: at the root only a literal's first character leads anywhere
+            if (node == 0) {
+                int candidate = prefilter.next(input, i, end);
+                position += candidate - i;
+                i = candidate;
+                if (i == end) {
+                    break;
+                }
+            }
+            step(input.charAt(i));
+        }
+        flushMetrics();
+    }
+
+    // Raw bytes are read as ISO-8859-1 characters: ASCII literals match as they are, and tables from
+    // PatternCompiler.compileUtf8 match any literal in UTF-8 input
+    public void feed(ByteBuffer input) {
+        int end = input.limit();
+        for (int i = input.position(); i < end; i++) {
+            if (matchedCount >= matchLimit) {
+                position += end - i;
+                break;
+            }
+            if (node == 0) {
+                int candidate = prefilter.next(input, i, end);
+                position += candidate - i;
+                i = candidate;
+                if (i == end) {
+                    break;
+                }
+            }
+            step((char) (input.get(i) & 0xFF));
+        }
+        flushMetrics();
+    }
+
+    // Called when a scan completes; the next feed starts a fresh prefilter cursor
+    public void release() {
+        prefilter.release();
+    }
+
+    private void flushMetrics() {
+        if (recording) {
+            metrics.recordScan(scanTransitions, scanAccesses);
+        }
+        scanTransitions = 0;
+        scanAccesses = 0;
+    }
+
+    private void step(char c) {
+        int nextNode = literals.nextNode(node, compiledPatterns.classOf(c));
+        scanAccesses++;
+        if (nextNode != node) {
+            scanTransitions++;
+            node = nextNode;
+        }
+
+        if (literals.getOutputStart(node) != literals.getOutputEnd(node)) {
+            advancePatterns();
+        }
+        position++;
+    }
+
+    // Literal parts only count when they start after the previous part of the same pattern ended
+    private void advancePatterns() {
+        for (int k = literals.getOutputStart(node); k < literals.getOutputEnd(node); k++) {
+            int p = literals.getOutputPattern(k);
+            scanAccesses++;
+            if (progress[p] == literals.getOutputPart(k)
+                    && position - literals.getOutputLength(k) + 1 >= readyAt[p]) {
+                if (progress[p] == 0) {
+                    matchStart[p] = position - literals.getOutputLength(k) + 1;
+                    touched[touchedCount++] = p;
+                }
+                partEnds[partBase[p] + progress[p]] = position + 1;
+                progress[p]++;
+                readyAt[p] = position + 1;
+                if (progress[p] == compiledPatterns.getPartCount(p)) {
+                    matchedBits[p >>> 6] |= 1L << p;
+                    matchEnd[p] = position + 1;
+                    matchedCount++;
+                }
+            }
+        }
+    }
+
+    public boolean isMatched(int patternIndex) {
+        return (matchedBits[patternIndex >>> 6] & (1L << patternIndex)) != 0;
+    }
+
+    public int getMatchedCount() {
+        return matchedCount;
+    }
+
+    // Copies the matched-pattern bit registers into target[offset ..]
+    public void copyMatchedBits(long[] target, int offset) {
+        System.arraycopy(matchedBits, 0, target, offset, matchedBits.length);
+    }
+
+    public long getMatchStart(int patternIndex) {
+        return isMatched(patternIndex) ? matchStart[patternIndex] : -1;
+    }
+
+    public long getMatchEnd(int patternIndex) {
+        return matchEnd[patternIndex];
+    }
+
+    public void collectResults(List<PatternMatchResult> results) {
+        for (int p = 0; p < patternCount; p++) {
+            results.add(compiledPatterns.createResult(p, isMatched(p)));
+        }
+    }
+
+    // Offsets are ints, so this is for inputs shorter than 2 GB (e.g. a String)
+    public void collectResults(MatchResultSet results) {
+        for (int p = 0; p < patternCount; p++) {
+            if (isMatched(p)) {
+                for (int k = 0; k < compiledPatterns.getPartCount(p); k++) {
+                    results.setPartEnd(p, k, (int) partEnds[partBase[p] + k]);
+                }
+                results.setMatched(p);
+            }
+        }
+    }
+
+    public long getPosition() {
+        return position;
+    }
+}
+
+// Lazy DFA Scanner Class: subsets of the combined pattern NFA become DFA states only when the input
+// reaches them, and live in a bounded cache that is flushed (or abandoned for the NFA) when full
+class LazyDfaScanner {
+    public static final int DEFAULT_CACHE_STATES = 4096;
+    private static final int UNKNOWN = -1;
+    // Flushing sooner than this many characters per cached state means the cache is thrashing
+    private static final int MIN_CHARACTERS_PER_STATE = 10;
+
+    private final CompiledPatternSet compiledPatterns;
+    private final PerformanceMetrics metrics;
+    private final int classCount;
+    private final int patternCount;
+
+    // Combined NFA: one state per literal character of every pattern plus one accept state per pattern
+    private final int[] nfaClass;
+    private final boolean[] nfaLoops;
+    private final int[] nfaPattern;
+    private final int[] nfaAccept;
+    private final int[] startSet;
+
+    // DFA cache: transitions[id * classCount + cls] is the next state id, or UNKNOWN until first taken
+    private final int cacheStates;
+    private final int[] transitions;
+    private final int[][] stateSets;
+    private final int[] acceptedCounts;
+    private final Map<StateKey, Integer> stateIds;
+    private int stateCount;
+    private long flushes;
+    private long charactersSinceFlush;
+
+    // Current scan: a DFA state id, or an explicit NFA state set once the cache has been given up
+    private int state;
+    private boolean nfaFallback;
+    private int[] nfaSet;
+    private int[] nfaNext;
+    private int nfaSize;
+    // Accept states in nfaSet, and in the set the last nfaStep produced: counted while compacting, so the
+    // per-character match-limit check never walks the set
+    private int nfaAccepted;
+    private int stepAccepted;
+    private long position;
+    private int matchLimit;
+
+    // Scan counters are kept locally and flushed to the shared metrics after each feed
+    private boolean recording;
+    private long scanTransitions;
+    private long scanAccesses;
+
+    // Hash key for a sorted NFA state set
+    static class StateKey {
+        private final int[] states;
+        private final int hash;
+
+        StateKey(int[] states) {
+            this.states = states;
+            this.hash = Arrays.hashCode(states);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object other) {
+            return other instanceof StateKey && Arrays.equals(states, ((StateKey) other).states);
+        }
+    }
+
+    public LazyDfaScanner(CompiledPatternSet compiledPatterns, PerformanceMetrics metrics) {
+        this(compiledPatterns, metrics, DEFAULT_CACHE_STATES);
+    }
+
+    public LazyDfaScanner(CompiledPatternSet compiledPatterns, PerformanceMetrics metrics, int cacheStates) {
+        if (cacheStates < 2) {
+            throw new IllegalArgumentException("Lazy DFA cache needs at least 2 states: " + cacheStates);
+        }
+        this.compiledPatterns = compiledPatterns;
+        this.metrics = metrics;
+        this.classCount = compiledPatterns.getClassCount();
+        this.patternCount = compiledPatterns.getPatternCount();
+
+        int nfaStates = 0;
+        for (int p = 0; p < patternCount; p++) {
+            nfaStates += compiledPatterns.getMinLength(p) + 1;
+        }
+        nfaClass = new int[nfaStates];
+        nfaLoops = new boolean[nfaStates];
+        nfaPattern = new int[nfaStates];
+        nfaAccept = new int[patternCount];
+        startSet = new int[patternCount];
+        int base = 0;
+        for (int p = 0; p < patternCount; p++) {
+            startSet[p] = base;
+            int state = base;
+            for (int partIndex = 0; partIndex < compiledPatterns.getPartCount(p); partIndex++) {
+                String part = compiledPatterns.getPart(p, partIndex);
+                nfaLoops[state] = true;
+                for (int i = 0; i < part.length(); i++) {
+                    nfaClass[state] = compiledPatterns.classOf(part.charAt(i));
+                    nfaPattern[state] = p;
+                    state++;
+                }
+            }
+            // Accept state: absorbing, .* after the last literal consumes the rest
+            nfaClass[state] = -1;
+            nfaLoops[state] = true;
+            nfaPattern[state] = p;
+            nfaAccept[p] = state;
+            base = state + 1;
+        }
+
+        this.cacheStates = cacheStates;
+        this.transitions = new int[cacheStates * classCount];
+        this.stateSets = new int[cacheStates][];
+        this.acceptedCounts = new int[cacheStates];
+        this.stateIds = new HashMap<StateKey, Integer>();
+        this.nfaSet = new int[nfaStates];
+        this.nfaNext = new int[nfaStates];
+        flush();
+        reset();
+    }
+
+    public void reset() {
+        reset(metrics.beginScan());
+    }
+
+    public void reset(boolean recording) {
+        reset(recording, patternCount);
+    }
+
+    // The scan stops once matchLimit patterns have matched (early-exit queries)
+    public void reset(boolean recording, int matchLimit) {
+        this.recording = recording;
+        this.matchLimit = matchLimit;
+        position = 0;
+        nfaFallback = false;
+        if (stateCount == cacheStates) {
+            flush();
+        }
+        Integer start = stateIds.get(new StateKey(startSet));
+        state = start != null ? start : intern(startSet);
+    }
+
+    public void feed(CharSequence input, int start, int end) {
+        for (int i = start; i < end; i++) {
+            // Judging Instrument: nothing left to decide once the query has seen enough matches
+            if (getMatchedCount() >= matchLimit) {
+                position += end - i;
+                break;
+            }
+            step(compiledPatterns.classOf(input.charAt(i)));
+        }
+        flushMetrics();
+    }
+
+    private void flushMetrics() {
+        if (recording) {
+            metrics.recordScan(scanTransitions, scanAccesses);
+        }
+        scanTransitions = 0;
+        scanAccesses = 0;
+    }
+
+    private void step(int cls) {
+        scanAccesses++;
+        position++;
+        if (!nfaFallback) {
+            int next = transitions[state * classCount + cls];
+            if (next == UNKNOWN) {
+                next = addTransition(state, cls);
+                if (next == UNKNOWN) {
+                    // Switched to the NFA; this character is already applied to nfaSet
+                    scanTransitions++;
+                    return;
+                }
+            }
+            if (next != state) {
+                scanTransitions++;
+                state = next;
+            }
+            charactersSinceFlush++;
+            return;
+        }
+
+        // NFA fallback: bounded memory, one set step per character
+        int size = nfaStep(nfaSet, nfaSize, cls, nfaNext);
+        if (size != nfaSize || !Arrays.equals(nfaSet, 0, size, nfaNext, 0, size)) {
+            scanTransitions++;
+        }
+        int[] swap = nfaSet;
+        nfaSet = nfaNext;
+        nfaNext = swap;
+        nfaSize = size;
+        nfaAccepted = stepAccepted;
+    }
+
+    // Builds the missing DFA state; returns UNKNOWN (and leaves the set in nfaSet) when giving up on the cache
+    private int addTransition(int from, int cls) {
+        int[] fromSet = stateSets[from];
+        int size = nfaStep(fromSet, fromSet.length, cls, nfaNext);
+        int[] nextSet = Arrays.copyOf(nfaNext, size);
+        Integer id = stateIds.get(new StateKey(nextSet));
+        if (id != null) {
+            transitions[from * classCount + cls] = id;
+            return id;
+        }
+
+        if (stateCount == cacheStates) {
+            if (charactersSinceFlush < (long) MIN_CHARACTERS_PER_STATE * cacheStates) {
+                nfaFallback = true;
+                System.arraycopy(nextSet, 0, nfaSet, 0, size);
+                nfaSize = size;
+                nfaAccepted = stepAccepted;
+                return UNKNOWN;
+            }
+            flush();
+            return intern(nextSet);
+        }
+        int next = intern(nextSet);
+        transitions[from * classCount + cls] = next;
+        return next;
+    }
+
+    private int intern(int[] set) {
+        int id = stateCount++;
+        stateSets[id] = set;
+        stateIds.put(new StateKey(set), id);
+        int accepted = 0;
+        for (int s : set) {
+            if (nfaClass[s] < 0) {
+                accepted++;
+            }
+        }
+        acceptedCounts[id] = accepted;
+        return id;
+    }
+
+    private void flush() {
+        if (stateCount > 0) {
+            flushes++;
+        }
+        Arrays.fill(transitions, UNKNOWN);
+        Arrays.fill(stateSets, 0, stateCount, null);
+        stateIds.clear();
+        stateCount = 0;
+        charactersSinceFlush = 0;
+    }
+
+    // One NFA step over a sorted set; the result is sorted and keeps, per pattern, only the states from
+    // its furthest .* loop on, because that loop can reach everything the earlier states could
+    private int nfaStep(int[] set, int size, int cls, int[] out) {
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            int s = set[i];
+            if (nfaLoops[s] && (count == 0 || out[count - 1] != s)) {
+                out[count++] = s;
+            }
+            if (nfaClass[s] == cls) {
+                out[count++] = s + 1;
+            }
+        }
+
+        int write = count;
+        int pattern = -1;
+        boolean covered = false;
+        int accepted = 0;
+        for (int i = count - 1; i >= 0; i--) {
+            int s = out[i];
+            if (nfaPattern[s] != pattern) {
+                pattern = nfaPattern[s];
+                covered = false;
+            }
+            if (!covered) {
+                covered = nfaLoops[s];
+                out[--write] = s;
+                if (nfaClass[s] < 0) {
+                    accepted++;
+                }
+            }
+        }
+        stepAccepted = accepted;
+        System.arraycopy(out, write, out, 0, count - write);
+        return count - write;
+    }
+
+    private int[] currentSet() {
+        return nfaFallback ? nfaSet : stateSets[state];
+    }
+
+    private int currentSize() {
+        return nfaFallback ? nfaSize : stateSets[state].length;
+    }
+
+    public boolean isMatched(int patternIndex) {
+        return Arrays.binarySearch(currentSet(), 0, currentSize(), nfaAccept[patternIndex]) >= 0;
+    }
+
+    public int getMatchedCount() {
+        return nfaFallback ? nfaAccepted : acceptedCounts[state];
+    }
+
+    // Copies the matched patterns into target[offset ..] as bit registers, one bit per pattern
+    public void copyMatchedBits(long[] target, int offset) {
+        Arrays.fill(target, offset, offset + ((patternCount + 63) >>> 6), 0L);
+        int[] set = currentSet();
+        for (int i = 0; i < currentSize(); i++) {
+            if (nfaClass[set[i]] < 0) {
+                int p = nfaPattern[set[i]];
+                target[offset + (p >>> 6)] |= 1L << p;
+            }
+        }
+    }
+
+    public void collectResults(List<PatternMatchResult> results) {
+        for (int p = 0; p < patternCount; p++) {
+            results.add(compiledPatterns.createResult(p, isMatched(p)));
+        }
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    public int getCachedStateCount() {
+        return stateCount;
+    }
+
+    public long getCacheFlushes() {
+        return flushes;
+    }
+
+    public boolean isNfaFallback() {
+        return nfaFallback;
+    }
+}
+
+// Streaming Matcher Class: chunked input with HFA state carried across chunk boundaries
+class StreamingMatcher {
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    private final MultiPatternScanner scanner;
+    private final char[] chunk;
+    private final CharBuffer chunkView;
+    private final Charset charset;
+
+    public StreamingMatcher(CompiledPatternSet compiledPatterns, PerformanceMetrics metrics) {
+        this(compiledPatterns, metrics, DEFAULT_CHUNK_SIZE, StandardCharsets.UTF_8);
+    }
+
+    public StreamingMatcher(CompiledPatternSet compiledPatterns, PerformanceMetrics metrics, int chunkSize,
+            Charset charset) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+        }
+        this.scanner = new MultiPatternScanner(compiledPatterns, metrics);
+        this.chunk = new char[chunkSize];
+        this.chunkView = CharBuffer.wrap(chunk);
+        this.charset = charset;
+    }
+
+    public void reset() {
+        scanner.reset();
+    }
+
+    // Feeds one chunk; literals split across chunks still match because the scanner state persists
+    public void feed(CharSequence input) {
+        scanner.feed(input, 0, input.length());
+        scanner.release();
+    }
+
+    public void feed(char[] input, int offset, int length) {
+        scanner.feed(CharBuffer.wrap(input), offset, offset + length);
+    }
+
+    public List<PatternMatchResult> finish() {
+        List<PatternMatchResult> results = new ArrayList<PatternMatchResult>();
+        scanner.collectResults(results);
+        return results;
+    }
+
+    public long getCharactersScanned() {
+        return scanner.getPosition();
+    }
+
+    public List<PatternMatchResult> match(Reader reader) throws IOException {
+        reset();
+        int read;
+        while ((read = reader.read(chunk, 0, chunk.length)) != -1) {
+            scanner.feed(chunkView, 0, read);
+        }
+        return finish();
+    }
+
+    public List<PatternMatchResult> match(InputStream input) throws IOException {
+        return match(new InputStreamReader(input, charset));
+    }
+
+    public List<PatternMatchResult> match(ByteBuffer input) {
+        reset();
+        CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        boolean endOfInput = false;
+        while (true) {
+            chunkView.clear();
+            CoderResult coderResult = endOfInput ? decoder.flush(chunkView) : decoder.decode(input, chunkView, true);
+            chunkView.flip();
+            scanner.feed(chunkView, 0, chunkView.remaining());
+            if (coderResult.isUnderflow()) {
+                if (endOfInput) {
+                    break;
+                }
+                endOfInput = true;
+            }
+        }
+        chunkView.clear();
+        return finish();
+    }
+}
+
+// File Scan Result Class: per-pattern match flags with byte offsets
+class FileScanResult {
+    private final String path;
+    private final long bytesScanned;
+    private final List<String> patterns;
+    private final boolean[] matched;
+    private final long[] matchStart;
+    private final long[] matchEnd;
+    private final double scanTime;
+
+    public FileScanResult(String path, long bytesScanned, List<String> patterns, boolean[] matched,
+            long[] matchStart, long[] matchEnd, double scanTime) {
+        this.path = path;
+        this.bytesScanned = bytesScanned;
+        this.patterns = patterns;
+        this.matched = matched;
+        this.matchStart = matchStart;
+        this.matchEnd = matchEnd;
+        this.scanTime = scanTime;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public long getBytesScanned() {
+        return bytesScanned;
+    }
+
+    public int getPatternCount() {
+        return patterns.size();
+    }
+
+    public String getPattern(int patternIndex) {
+        return patterns.get(patternIndex);
+    }
+
+    public boolean isMatched(int patternIndex) {
+        return matched[patternIndex];
+    }
+
+    public long getMatchStart(int patternIndex) {
+        return matchStart[patternIndex];
+    }
+
+    public long getMatchEnd(int patternIndex) {
+        return matchEnd[patternIndex];
+    }
+
+    public double getScanTime() {
+        return scanTime;
+    }
+}
+
+// Mapped File Scanner Class: runs the HFA directly over memory-mapped file windows
+class MappedFileScanner {
+    // A single MappedByteBuffer is limited to Integer.MAX_VALUE bytes
+    public static final long DEFAULT_WINDOW_SIZE = 1L << 30;
+
+    private final CompiledPatternSet compiledPatterns;
+    private final PerformanceMetrics metrics;
+    private final long windowSize;
+
+    public MappedFileScanner(CompiledPatternSet compiledPatterns, PerformanceMetrics metrics) {
+        this(compiledPatterns, metrics, DEFAULT_WINDOW_SIZE);
+    }
+
+    public MappedFileScanner(CompiledPatternSet compiledPatterns, PerformanceMetrics metrics, long windowSize) {
+        if (windowSize <= 0 || windowSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Window size must be between 1 and " + Integer.MAX_VALUE);
+        }
+        this.compiledPatterns = compiledPatterns;
+        this.metrics = metrics;
+        this.windowSize = windowSize;
+    }
+
+    public FileScanResult scan(Path file) throws IOException {
+        long startTime = System.nanoTime();
+        MultiPatternScanner scanner = new MultiPatternScanner(compiledPatterns, metrics);
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            // Scanner state carries across windows, so windows never need to overlap
+            for (long offset = 0; offset < size && scanner.getMatchedCount() < compiledPatterns.getPatternCount();
+                    offset += windowSize) {
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+                        Math.min(windowSize, size - offset));
+                scanner.feed(window);
+            }
+        }
+
+        int patternCount = compiledPatterns.getPatternCount();
+        List<String> patterns = new ArrayList<String>();
+        boolean[] matched = new boolean[patternCount];
+        long[] matchStart = new long[patternCount];
+        long[] matchEnd = new long[patternCount];
+        for (int p = 0; p < patternCount; p++) {
+            patterns.add(compiledPatterns.getPattern(p));
+            matched[p] = scanner.isMatched(p);
+            matchStart[p] = scanner.getMatchStart(p);
+            matchEnd[p] = scanner.getMatchEnd(p);
+        }
+
+        long endTime = System.nanoTime();
+        return new FileScanResult(file.toString(), scanner.getPosition(), patterns, matched, matchStart, matchEnd,
+                (endTime - startTime) / 1_000_000.0);
+    }
+}
+
+// Parallel Pattern Matcher Class: fork/join chunks on the shared literal automaton, merged by composing
+// per-pattern progress mappings
+class ParallelPatternMatcher {
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+    private final CompiledPatternSet compiledPatterns;
+    private final LiteralAutomaton literals;
+    private final PerformanceMetrics metrics;
+    private final ForkJoinPool pool;
+    private final int chunkSize;
+
+    // Between chunks a pattern's register is its next part and where that part may start. A start more than
+    // a window (the pattern's longest part) before the boundary no longer matters, so pattern p has
+    // (parts + 1) * window register values, numbered from registerBase[p] as progress * window + slot, where
+    // slot is how far before the boundary the next part may start
+    private final int[] registerBase;
+    private final int[] window;
+    private final int registerCount;
+    private final int longestPart;
+
+    public ParallelPatternMatcher(CompiledPatternSet compiledPatterns, PerformanceMetrics metrics) {
+        this(compiledPatterns, metrics, ForkJoinPool.commonPool(), DEFAULT_CHUNK_SIZE);
+    }
+
+    public ParallelPatternMatcher(CompiledPatternSet compiledPatterns, ForkJoinPool pool, int chunkSize) {
+        this(compiledPatterns, new PerformanceMetrics(MetricsMode.DISABLED), pool, chunkSize);
+    }
+
+    public ParallelPatternMatcher(CompiledPatternSet compiledPatterns, PerformanceMetrics metrics, ForkJoinPool pool,
+            int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+        }
+        this.compiledPatterns = compiledPatterns;
+        this.literals = compiledPatterns.getLiteralAutomaton();
+        this.metrics = metrics;
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+
+        int patternCount = compiledPatterns.getPatternCount();
+        this.registerBase = new int[patternCount];
+        this.window = new int[patternCount];
+        int registers = 0;
+        int longest = 1;
+        for (int p = 0; p < patternCount; p++) {
+            int patternWindow = 1;
+            for (int k = 0; k < compiledPatterns.getPartCount(p); k++) {
+                patternWindow = Math.max(patternWindow, compiledPatterns.getPart(p, k).length());
+            }
+            registerBase[p] = registers;
+            window[p] = patternWindow;
+            registers += (compiledPatterns.getPartCount(p) + 1) * patternWindow;
+            longest = Math.max(longest, patternWindow);
+        }
+        this.registerCount = registers;
+        this.longestPart = longest;
+    }
+
+    public List<PatternMatchResult> match(CharSequence input) {
+        return match(input, metrics.beginScan());
+    }
+
+    // Recorded scans count every literal automaton step and literal output as a memory access and every node
+    // change as a transition, as the single-pass scanner does
+    public List<PatternMatchResult> match(CharSequence input, boolean recorded) {
+        ScanCounters counters = recorded ? new ScanCounters() : null;
+        int[] registerMap = pool.invoke(new ChunkTask(input, 0, input.length(), counters));
+
+        List<PatternMatchResult> results = new ArrayList<PatternMatchResult>();
+        for (int p = 0; p < compiledPatterns.getPatternCount(); p++) {
+            // The input starts with progress 0 and the first part free to start anywhere
+            int progress = (registerMap[registerBase[p]] - registerBase[p]) / window[p];
+            boolean matched = progress == compiledPatterns.getPartCount(p);
+            results.add(compiledPatterns.createResult(p, matched));
+            if (recorded) {
+                metrics.recordPattern(compiledPatterns.getPattern(p), matched, 0);
+            }
+        }
+        if (recorded) {
+            metrics.recordScan(counters.transitions.sum(), counters.accesses.sum());
+        }
+        return results;
+    }
+
+    // Chunk counters, summed once per chunk so lanes never touch shared state per character
+    static class ScanCounters {
+        final LongAdder transitions = new LongAdder();
+        final LongAdder accesses = new LongAdder();
+    }
+
+    // Maps every register value to the one reached after reading input[from, to)
+    private class ChunkTask extends RecursiveTask<int[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final CharSequence input;
+        private final int from;
+        private final int to;
+        private final ScanCounters counters;
+
+        ChunkTask(CharSequence input, int from, int to, ScanCounters counters) {
+            this.input = input;
+            this.from = from;
+            this.to = to;
+            this.counters = counters;
+        }
+
+        protected int[] compute() {
+            if (to - from <= chunkSize) {
+                return scanChunk();
+            }
+
+            int middle = from + (to - from) / 2;
+            ChunkTask left = new ChunkTask(input, from, middle, counters);
+            ChunkTask right = new ChunkTask(input, middle, to, counters);
+            left.fork();
+            int[] rightMap = right.compute();
+            int[] leftMap = left.join();
+
+            // Composition: run the left chunk, then continue from wherever it ended
+            int[] composed = new int[leftMap.length];
+            for (int register = 0; register < leftMap.length; register++) {
+                composed[register] = rightMap[leftMap[register]];
+            }
+            return composed;
+        }
+
+        // Every register value starts a lane. The literal automaton runs once over the chunk, and a literal
+        // only visits the lanes of its own pattern that wait for that part, so the cost per character does not
+        // grow with the rule count. Lanes that take the same occurrence merge into one.
+        private int[] scanChunk() {
+            int[] progress = new int[registerCount];
+            int[] readyAt = new int[registerCount];
+            int[] representative = new int[registerCount];
+
+            // Lanes waiting for part k of pattern p are linked from waiting[registerBase[p] + k * window[p]]
+            int[] waiting = new int[registerCount];
+            int[] nextWaiting = new int[registerCount];
+            Arrays.fill(waiting, -1);
+            for (int p = 0; p < compiledPatterns.getPatternCount(); p++) {
+                for (int k = 0; k <= compiledPatterns.getPartCount(p); k++) {
+                    int group = registerBase[p] + k * window[p];
+                    for (int slot = 0; slot < window[p]; slot++) {
+                        int lane = group + slot;
+                        progress[lane] = k;
+                        readyAt[lane] = from - slot;
+                        representative[lane] = lane;
+                        nextWaiting[lane] = waiting[group];
+                        waiting[group] = lane;
+                    }
+                }
+            }
+
+            // Literals ending before the chunk belong to the previous one; the warm-up only sets the node
+            int node = 0;
+            long transitions = 0;
+            long accesses = 0;
+            for (int i = Math.max(0, from - (longestPart - 1)); i < to; i++) {
+                int nextNode = literals.nextNode(node, compiledPatterns.classOf(input.charAt(i)));
+                accesses++;
+                if (nextNode != node) {
+                    transitions++;
+                    node = nextNode;
+                }
+                if (i < from) {
+                    continue;
+                }
+
+                for (int k = literals.getOutputStart(node); k < literals.getOutputEnd(node); k++) {
+                    int p = literals.getOutputPattern(k);
+                    int group = registerBase[p] + literals.getOutputPart(k) * window[p];
+                    int start = i - literals.getOutputLength(k) + 1;
+                    accesses++;
+
+                    // Every lane free to start the part here takes it, and they move on as one lane
+                    int survivor = -1;
+                    int previous = -1;
+                    for (int lane = waiting[group]; lane >= 0; ) {
+                        int next = nextWaiting[lane];
+                        if (readyAt[lane] <= start) {
+                            if (previous < 0) {
+                                waiting[group] = next;
+                            } else {
+                                nextWaiting[previous] = next;
+                            }
+                            if (survivor < 0) {
+                                survivor = lane;
+                            } else {
+                                representative[lane] = survivor;
+                            }
+                        } else {
+                            previous = lane;
+                        }
+                        lane = next;
+                    }
+                    if (survivor >= 0) {
+                        progress[survivor]++;
+                        readyAt[survivor] = i + 1;
+                        nextWaiting[survivor] = waiting[group + window[p]];
+                        waiting[group + window[p]] = survivor;
+                    }
+                }
+            }
+
+            if (counters != null) {
+                counters.transitions.add(transitions);
+                counters.accesses.add(accesses);
+            }
+
+            int[] registerMap = new int[registerCount];
+            for (int p = 0; p < compiledPatterns.getPatternCount(); p++) {
+                int end = registerBase[p] + (compiledPatterns.getPartCount(p) + 1) * window[p];
+                for (int register = registerBase[p]; register < end; register++) {
+                    int lane = register;
+                    while (representative[lane] != lane) {
+                        lane = representative[lane];
+                    }
+                    representative[register] = lane;
+                    int slot = Math.min(to - readyAt[lane], window[p] - 1);
+                    registerMap[register] = registerBase[p] + progress[lane] * window[p] + slot;
+                }
+            }
+            return registerMap;
+        }
+    }
+}
+
+// Automaton Image Class: versioned binary form of a compiled HFA, loaded through a file map
+//
+// Layout (big-endian): magic, version, payload length, CRC-32 of the payload, payload. Arrays are an
+// int length followed by their elements; strings are UTF-8 byte arrays.
+class AutomatonImage {
+    public static final int MAGIC = 0x48464149; // "HFAI"
+    public static final int VERSION = 1;
+    private static final int HEADER_BYTES = 4 * Integer.BYTES;
+
+    public static void write(HighEfficientFA automaton, Path path) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(payload);
+        automaton.writeTo(data);
+        data.flush();
+        byte[] bytes = payload.toByteArray();
+        java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+        crc.update(bytes);
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(bytes.length);
+            out.writeInt((int) crc.getValue());
+            out.write(bytes);
+        }
+    }
+
+    public static HighEfficientFA read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES) {
+                throw new IOException("Not an automaton image: " + path);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not an automaton image: " + path);
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported automaton image version " + version + " (expected " + VERSION + ")");
+            }
+            int length = buffer.getInt();
+            int expectedCrc = buffer.getInt();
+            if (length != size - HEADER_BYTES) {
+                throw new IOException("Truncated automaton image: " + path);
+            }
+
+            ByteBuffer payload = buffer.slice();
+            java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != expectedCrc) {
+                throw new IOException("Corrupt automaton image (checksum mismatch): " + path);
+            }
+            try {
+                HighEfficientFA automaton = HighEfficientFA.readFrom(payload);
+                check(!payload.hasRemaining(), "payload length (trailing bytes)");
+                return automaton;
+            } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+                throw new IOException("Malformed automaton image: " + path, e);
+            }
+        }
+    }
+
+    static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    // Bulk copy out of the mapping: one array per table, never one object per state
+    static int[] readInts(ByteBuffer in) throws IOException {
+        int[] values = new int[readCount(in, Integer.BYTES)];
+        in.asIntBuffer().get(values);
+        in.position(in.position() + values.length * Integer.BYTES);
+        return values;
+    }
+
+    static void writeChars(DataOutputStream out, char[] values) throws IOException {
+        out.writeInt(values.length);
+        for (char value : values) {
+            out.writeChar(value);
+        }
+    }
+
+    static char[] readChars(ByteBuffer in) throws IOException {
+        char[] values = new char[readCount(in, Character.BYTES)];
+        in.asCharBuffer().get(values);
+        in.position(in.position() + values.length * Character.BYTES);
+        return values;
+    }
+
+    static void writeBytes(DataOutputStream out, byte[] values) throws IOException {
+        out.writeInt(values.length);
+        out.write(values);
+    }
+
+    static byte[] readBytes(ByteBuffer in) throws IOException {
+        byte[] values = new byte[readCount(in, 1)];
+        in.get(values);
+        return values;
+    }
+
+    static void writeBooleans(DataOutputStream out, boolean[] values) throws IOException {
+        out.writeInt(values.length);
+        for (boolean value : values) {
+            out.writeBoolean(value);
+        }
+    }
+
+    static boolean[] readBooleans(ByteBuffer in) throws IOException {
+        boolean[] values = new boolean[readCount(in, 1)];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.get() != 0;
+        }
+        return values;
+    }
+
+    static void writeStrings(DataOutputStream out, String[] values) throws IOException {
+        out.writeInt(values.length);
+        for (String value : values) {
+            writeBytes(out, value.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    static String[] readStrings(ByteBuffer in) throws IOException {
+        // Every string carries at least its own length prefix
+        String[] values = new String[readCount(in, Integer.BYTES)];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new String(readBytes(in), StandardCharsets.UTF_8);
+        }
+        return values;
+    }
+
+    // Array length prefix, checked against the bytes left before anything is allocated
+    private static int readCount(ByteBuffer in, int elementBytes) throws IOException {
+        int count = in.getInt();
+        if (count < 0 || count > in.remaining() / elementBytes) {
+            throw new IOException("Malformed automaton image: array of " + count + " elements in "
+                    + in.remaining() + " remaining bytes");
+        }
+        return count;
+    }
+
+    static void check(boolean valid, String table) throws IOException {
+        if (!valid) {
+            throw new IOException("Malformed automaton image: invalid " + table);
+        }
+    }
+
+    // Every value in [0, limit) and, for premultiplied state offsets, a multiple of step
+    static void checkRange(int[] values, int limit, int step, String table) throws IOException {
+        for (int value : values) {
+            check(value >= 0 && value < limit && value % step == 0, table);
+        }
+    }
+
+    // Sorted, distinct characters: the non-ASCII class tables are binary searched
+    static void checkSorted(char[] values, String table) throws IOException {
+        for (int i = 1; i < values.length; i++) {
+            check(values[i - 1] < values[i], table);
+        }
+    }
+}
+
+// Compiled Automaton Class: immutable, thread-safe compiled tables shared by every Matcher
+final class CompiledAutomaton {
+    private final CompiledPatternSet compiledPatterns;
+    private final PerformanceMetrics metrics;
+
+    // UTF-8 byte tables, derived from compiledPatterns on first byte scan. A race only compiles equal
+    // tables twice, and the volatile publishes them fully built.
+    private volatile CompiledPatternSet utf8Patterns;
+
+    CompiledAutomaton(CompiledPatternSet compiledPatterns, PerformanceMetrics metrics) {
+        this.compiledPatterns = compiledPatterns;
+        this.metrics = metrics;
+    }
+
+    public CompiledPatternSet getCompiledPatterns() {
+        return compiledPatterns;
+    }
+
+    public CompiledPatternSet getUtf8Patterns() {
+        CompiledPatternSet patterns = utf8Patterns;
+        if (patterns == null) {
+            List<String> patternList = new ArrayList<String>();
+            for (int p = 0; p < compiledPatterns.getPatternCount(); p++) {
+                patternList.add(compiledPatterns.getPattern(p));
+            }
+            patterns = PatternCompiler.compileUtf8(patternList);
+            utf8Patterns = patterns;
+        }
+        return patterns;
+    }
+
+    public PerformanceMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Words per record in a batch mask: bit p of record r is in masks[r * getMaskWords() + (p >>> 6)]
+    public int getMaskWords() {
+        return (compiledPatterns.getPatternCount() + 63) >>> 6;
+    }
+
+    // Matchers are cheap (scanner registers sized to the pattern set) and meant to be pooled or kept per thread
+    public Matcher newMatcher() {
+        return new Matcher(this);
+    }
+}
+
+// Matcher Class: per-thread scan state over a shared CompiledAutomaton (not thread-safe)
+final class Matcher {
+    // Auxiliary Variables (like XFA but with smarter usage): a bit register plus a part counter
+    static final int FOUND_FIRST_PART = 0;
+    static final int LOOKING_FOR_SECOND = 1;
+    static final int AUXILIARY_SLOTS = 2;
+
+    private final CompiledAutomaton automaton;
+    private final CompiledPatternSet compiledPatterns;
+    private final PerformanceMetrics metrics;
+    private final int maskWords;
+    private final MultiPatternScanner singlePassScanner;
+    private boolean singlePassMode;
+    private MultiPatternScanner utf8Scanner;
+    private LazyDfaScanner lazyDfaScanner;
+    private boolean lazyDfaMode;
+    private int lazyDfaCacheStates = LazyDfaScanner.DEFAULT_CACHE_STATES;
+
+    private long auxiliaryVars;
+    private int partProgress;
+
+    // Judging Instruments
+    private String currentPattern;
+    private boolean useIntelligentRouting;
+
+    Matcher(CompiledAutomaton automaton) {
+        this.automaton = automaton;
+        this.compiledPatterns = automaton.getCompiledPatterns();
+        this.metrics = automaton.getMetrics();
+        this.maskWords = automaton.getMaskWords();
+        this.singlePassScanner = new MultiPatternScanner(compiledPatterns, metrics);
+    }
+
+    public CompiledAutomaton getCompiledAutomaton() {
+        return automaton;
+    }
+
+    // Single-pass mode scans the input once for all patterns instead of once per pattern
+    public void setSinglePassMode(boolean singlePassMode) {
+        this.singlePassMode = singlePassMode;
+    }
+
+    // Batch matching: every record runs through the single-pass scanner and leaves only its mask behind
+    public long[] matchBatch(List<? extends CharSequence> records) {
+        long[] masks = new long[records.size() * maskWords];
+        long startTime = System.nanoTime();
+        boolean recorded = metrics.beginScan();
+        for (int r = 0; r < records.size(); r++) {
+            CharSequence record = records.get(r);
+            matchRecord(record, 0, record.length(), masks, r, recorded);
+        }
+        finishBatch(startTime, recorded);
+        return masks;
+    }
+
+    // recordOffsets holds each record's start in buffer plus the end of the last record
+    public long[] matchBatch(CharSequence buffer, int[] recordOffsets) {
+        long[] masks = new long[Math.max(0, recordOffsets.length - 1) * maskWords];
+        matchBatch(buffer, recordOffsets, masks);
+        return masks;
+    }
+
+    public void matchBatch(CharSequence buffer, int[] recordOffsets, long[] masks) {
+        int records = recordOffsets.length - 1;
+        if (records < 0 || masks.length < records * maskWords) {
+            throw new IllegalArgumentException("Mask array too small for " + records + " records");
+        }
+        long startTime = System.nanoTime();
+        boolean recorded = metrics.beginScan();
+        for (int r = 0; r < records; r++) {
+            if (recordOffsets[r] > recordOffsets[r + 1] || recordOffsets[r + 1] > buffer.length()) {
+                throw new IllegalArgumentException("Invalid record bounds [" + recordOffsets[r] + ", "
+                        + recordOffsets[r + 1] + ")");
+            }
+            matchRecord(buffer, recordOffsets[r], recordOffsets[r + 1], masks, r, recorded);
+        }
+        finishBatch(startTime, recorded);
+    }
+
+    private void matchRecord(CharSequence input, int start, int end, long[] masks, int record, boolean recorded) {
+        singlePassScanner.reset(recorded);
+        singlePassScanner.feed(input, start, end);
+        singlePassScanner.copyMatchedBits(masks, record * maskWords);
+    }
+
+    private void finishBatch(long startTime, boolean recorded) {
+        singlePassScanner.release();
+        long endTime = System.nanoTime();
+        metrics.addMatchingTime((endTime - startTime) / 1_000_000.0);
+        if (recorded) {
+            metrics.recordMatchLatency(endTime - startTime);
+        }
+    }
+
+    // Lazy DFA mode runs one combined automaton whose states are built on demand in a bounded cache
+    public void setLazyDfaMode(boolean lazyDfaMode) {
+        this.lazyDfaMode = lazyDfaMode;
+        if (lazyDfaMode && lazyDfaScanner == null) {
+            lazyDfaScanner = new LazyDfaScanner(compiledPatterns, metrics, lazyDfaCacheStates);
+        }
+    }
+
+    public boolean isLazyDfaMode() {
+        return lazyDfaMode;
+    }
+
+    public void setLazyDfaCacheStates(int cacheStates) {
+        lazyDfaScanner = new LazyDfaScanner(compiledPatterns, metrics, cacheStates);
+        lazyDfaCacheStates = cacheStates;
+    }
+
+    public int getLazyDfaCacheStates() {
+        return lazyDfaCacheStates;
+    }
+
+    public LazyDfaScanner getLazyDfaScanner() {
+        return lazyDfaScanner;
+    }
+
+    public boolean isSinglePassMode() {
+        return singlePassMode;
+    }
+
+    // Query modes: each answers only what the caller asks, so the combined scan stops as soon as that is
+    // decided. matchesAny stops at the first accept; countMatches and whichMatch once every pattern matched.
+    public boolean matchesAny(CharSequence input) {
+        return scanCombined(input, 1) > 0;
+    }
+
+    public int countMatches(CharSequence input) {
+        return scanCombined(input, compiledPatterns.getPatternCount());
+    }
+
+    // Matched patterns as a bit mask (bit p of word p >>> 6); mask is reused when it has maskWords words
+    public long[] whichMatch(CharSequence input, long[] mask) {
+        if (mask == null || mask.length != maskWords) {
+            mask = new long[maskWords];
+        }
+        scanCombined(input, compiledPatterns.getPatternCount());
+        if (lazyDfaMode) {
+            lazyDfaScanner.copyMatchedBits(mask, 0);
+        } else {
+            singlePassScanner.copyMatchedBits(mask, 0);
+        }
+        return mask;
+    }
+
+    // UTF-8 input: bytes from the buffer's position to its limit are matched without decoding, against
+    // the UTF-8 form of every literal, and offsets are in bytes from the position. Wrap a byte[] with
+    // ByteBuffer.wrap(bytes, offset, length). Byte scans always use the single-pass scanner.
+    public boolean matchesAny(ByteBuffer input) {
+        return scanUtf8(input, 1) > 0;
+    }
+
+    public int countMatches(ByteBuffer input) {
+        return scanUtf8(input, compiledPatterns.getPatternCount());
+    }
+
+    public long[] whichMatch(ByteBuffer input, long[] mask) {
+        if (mask == null || mask.length != maskWords) {
+            mask = new long[maskWords];
+        }
+        scanUtf8(input, compiledPatterns.getPatternCount());
+        utf8Scanner.copyMatchedBits(mask, 0);
+        return mask;
+    }
+
+    // Part offsets are byte offsets; results belong to the UTF-8 tables (getUtf8Patterns)
+    public MatchResultSet matchPatterns(ByteBuffer input, MatchResultSet results) {
+        CompiledPatternSet utf8Patterns = automaton.getUtf8Patterns();
+        if (results == null || !results.isFor(utf8Patterns)) {
+            results = new MatchResultSet(utf8Patterns);
+        }
+        results.clear();
+        scanUtf8(input, compiledPatterns.getPatternCount());
+        utf8Scanner.collectResults(results);
+        return results;
+    }
+
+    private int scanUtf8(ByteBuffer input, int matchLimit) {
+        if (utf8Scanner == null) {
+            utf8Scanner = new MultiPatternScanner(automaton.getUtf8Patterns(), metrics);
+        }
+        long startTime = System.nanoTime();
+        boolean recorded = metrics.beginScan();
+        utf8Scanner.reset(recorded, matchLimit);
+        utf8Scanner.feed(input);
+        finishBatch(startTime, recorded);
+        return utf8Scanner.getMatchedCount();
+    }
+
+    // Whichever combined automaton the matcher runs; per-pattern tables cannot stop across patterns
+    private int scanCombined(CharSequence input, int matchLimit) {
+        long startTime = System.nanoTime();
+        boolean recorded = metrics.beginScan();
+        int matched;
+        if (lazyDfaMode) {
+            lazyDfaScanner.reset(recorded, matchLimit);
+            lazyDfaScanner.feed(input, 0, input.length());
+            matched = lazyDfaScanner.getMatchedCount();
+        } else {
+            singlePassScanner.reset(recorded, matchLimit);
+            singlePassScanner.feed(input, 0, input.length());
+            matched = singlePassScanner.getMatchedCount();
+        }
+        finishBatch(startTime, recorded);
+        return matched;
+    }
+
+    public List<PatternMatchResult> matchPatterns(String input) {
+        long startTime = System.nanoTime();
+        boolean recorded = metrics.beginScan();
+        List<PatternMatchResult> results = new ArrayList<PatternMatchResult>();
+
+        if (lazyDfaMode) {
+            matchPatternsLazyDfa(input, results, recorded);
+        } else if (singlePassMode) {
+            matchPatternsSinglePass(input, results, recorded);
+        } else {
+            for (int p = 0; p < compiledPatterns.getPatternCount(); p++) {
+                resetAuxiliaryVars();
+                currentPattern = compiledPatterns.getPattern(p);
+
+                // Judging Instrument: Pattern complexity analysis for intelligent routing
+                String patternComplexity = analyzePatternComplexity(p);
+                metrics.incrementMemoryAccesses();
+
+                boolean matched = hfaPatternMatch(input, p, patternComplexity, recorded, null);
+                results.add(compiledPatterns.createResult(p, matched));
+            }
+        }
+
+        finishBatch(startTime, recorded);
+        return results;
+    }
+
+    // Matches into a reusable result set that carries part offsets; a new one is allocated when results
+    // is null or belongs to another pattern set
+    public MatchResultSet matchPatterns(String input, MatchResultSet results) {
+        long startTime = System.nanoTime();
+        boolean recorded = metrics.beginScan();
+        if (results == null || !results.isFor(compiledPatterns)) {
+            results = new MatchResultSet(compiledPatterns);
+        }
+        results.clear();
+
+        if (singlePassMode && !lazyDfaMode) {
+            singlePassScanner.reset(recorded);
+            singlePassScanner.feed(input, 0, input.length());
+            singlePassScanner.collectResults(results);
+        } else {
+            // The lazy DFA only says which patterns matched; the per-pattern tables then locate them
+            if (lazyDfaMode) {
+                lazyDfaScanner.reset(recorded);
+                lazyDfaScanner.feed(input, 0, input.length());
+            }
+            for (int p = 0; p < compiledPatterns.getPatternCount(); p++) {
+                if (lazyDfaMode && !lazyDfaScanner.isMatched(p)) {
+                    continue;
+                }
+                resetAuxiliaryVars();
+                currentPattern = compiledPatterns.getPattern(p);
+                if (hfaPatternMatch(input, p, analyzePatternComplexity(p), recorded, results)) {
+                    results.setMatched(p);
+                }
+            }
+        }
+
+        finishBatch(startTime, recorded);
+        return results;
+    }
+
+    // Combined HFA: one literal automaton plus per-pattern progress registers
+    private void matchPatternsSinglePass(String input, List<PatternMatchResult> results, boolean recorded) {
+        singlePassScanner.reset(recorded);
+        metrics.incrementMemoryAccesses(compiledPatterns.getPatternCount());
+        singlePassScanner.feed(input, 0, input.length());
+        singlePassScanner.collectResults(results);
+
+        if (recorded) {
+            for (int p = 0; p < compiledPatterns.getPatternCount(); p++) {
+                metrics.recordPattern(compiledPatterns.getPattern(p), singlePassScanner.isMatched(p), 0);
+            }
+        }
+    }
+
+    private void matchPatternsLazyDfa(String input, List<PatternMatchResult> results, boolean recorded) {
+        lazyDfaScanner.reset(recorded);
+        lazyDfaScanner.feed(input, 0, input.length());
+        lazyDfaScanner.collectResults(results);
+
+        if (recorded) {
+            for (int p = 0; p < compiledPatterns.getPatternCount(); p++) {
+                metrics.recordPattern(compiledPatterns.getPattern(p), lazyDfaScanner.isMatched(p), 0);
+            }
+        }
+    }
+
+    // Judging Instrument: Analyze pattern complexity for routing decisions
+    private String analyzePatternComplexity(int patternIndex) {
+        int longestPart = 0;
+        for (int i = 0; i < compiledPatterns.getPartCount(patternIndex); i++) {
+            longestPart = Math.max(longestPart, compiledPatterns.getPart(patternIndex, i).length());
+        }
+
+        if (longestPart == 0) {
+            return "UNKNOWN";
+        } else if (longestPart <= 2) {
+            return "SIMPLE_PAIR";
+        } else if (longestPart <= 4) {
+            return "MEDIUM_PAIR";
+        }
+        return "COMPLEX_PAIR";
+    }
+
+    // HFA Pattern Matching with Judging Instruments
+    // Records the end of each literal part in offsets when one is given
+    private boolean hfaPatternMatch(String input, int patternIndex, String complexity, boolean recorded,
+            MatchResultSet offsets) {
+        int currentState = compiledPatterns.getStartState(patternIndex);
+        int acceptState = compiledPatterns.getAcceptState(patternIndex);
+
+        // Use judging instruments to determine optimal processing path
+        useIntelligentRouting = shouldUseIntelligentRouting(complexity);
+        metrics.incrementMemoryAccesses();
+
+        // Counted locally and recorded once, so the per-character loop never touches shared metrics
+        long transitions = 0;
+        int charactersRead = 0;
+        boolean matched = currentState == acceptState;
+        int escapeChar = compiledPatterns.getEscapeChar(currentState);
+
+        for (int i = 0; i < input.length() && !matched; i++) {
+            // Judging Instrument: a state only one character can leave (the start of a literal part) skips
+            // ahead to the part's next occurrence, by indexOf or (for long parts) by shift-table search
+            if (escapeChar >= 0) {
+                i = compiledPatterns.findPart(input, patternIndex, compiledPatterns.partOf(currentState), i);
+                if (i < 0) {
+                    break;
+                }
+            }
+
+            // Core HFA Logic: a single table lookup per candidate character
+            int nextState = compiledPatterns.nextState(currentState, input.charAt(i));
+            charactersRead++;
+
+            if (nextState != currentState) {
+                transitions++;
+                if (updateAuxiliaryVars(nextState) && offsets != null) {
+                    offsets.setPartEnd(patternIndex, partProgress - 1, i + 1);
+                }
+                currentState = nextState;
+                escapeChar = compiledPatterns.getEscapeChar(currentState);
+            }
+
+            // Check if pattern is matched
+            matched = currentState == acceptState;
 
             // Judging Instrument: Early termination for impossible matches
-            if (shouldTerminateEarly(currentState, pattern, i, input.length())) {
+            if (shouldTerminateEarly(currentState, patternIndex, i, input.length())) {
+                break;
+            }
+        }
+
+        if (recorded) {
+            metrics.recordScan(transitions, charactersRead);
+            metrics.recordPattern(compiledPatterns.getPattern(patternIndex), matched, transitions);
+        }
+        return matched;
+    }
+
+    // Auxiliary variables only change when the scan crosses into a new literal part; returns true then
+    private boolean updateAuxiliaryVars(int state) {
+        int part = compiledPatterns.partOf(state);
+        if (part > partProgress) {
+            partProgress = part;
+            if (part == 1) {
+                auxiliaryVars |= (1L << FOUND_FIRST_PART) | (1L << LOOKING_FOR_SECOND);
+                metrics.incrementMemoryAccesses();
+            }
+            return true;
+        }
+        return false;
+    }
+
+    // Judging Instrument: Determine if intelligent routing should be used
+    private boolean shouldUseIntelligentRouting(String complexity) {
+        return !complexity.equals("UNKNOWN");
+    }
+
+    // Judging Instrument: Early termination optimization
+    private boolean shouldTerminateEarly(int state, int patternIndex, int pos, int inputLength) {
+        if (state == compiledPatterns.getStartState(patternIndex)
+                && inputLength - pos - 1 < compiledPatterns.getMinLength(patternIndex)) {
+            return true; // Not enough characters left for all literal parts
+        }
+        return false;
+    }
+
+    private void resetAuxiliaryVars() {
+        metrics.incrementMemoryAccesses();
+        auxiliaryVars = 0L;
+        partProgress = 0;
+    }
+}
+
+// Pattern Set Registry Class: lock-free hot swapping of compiled rule sets
+class PatternSetRegistry implements Closeable {
+    private final PerformanceMetrics metrics;
+    private final ExecutorService compiler;
+    private final AtomicLong versions = new AtomicLong();
+
+    // Automaton and version are published together, so readers never see one without the other
+    private volatile Generation current;
+
+    // Per-thread matcher, rebuilt the first time a thread scans after a swap
+    private final ThreadLocal<Matcher> matchers = new ThreadLocal<Matcher>();
+
+    // Matcher settings belong to the registry, so every rebuilt matcher gets them back
+    private volatile boolean singlePassMode;
+    private volatile boolean lazyDfaMode;
+    private volatile int lazyDfaCacheStates = LazyDfaScanner.DEFAULT_CACHE_STATES;
+
+    static final class Generation {
+        final CompiledAutomaton automaton;
+        final long version;
+
+        Generation(CompiledAutomaton automaton, long version) {
+            this.automaton = automaton;
+            this.version = version;
+        }
+    }
+
+    public PatternSetRegistry(List<String> patterns, PerformanceMetrics metrics) {
+        this(new CompiledAutomaton(PatternCompiler.compile(patterns), metrics));
+    }
+
+    // Starts from an automaton that is already compiled (e.g. HighEfficientFA.newRegistry())
+    public PatternSetRegistry(CompiledAutomaton initial) {
+        this.metrics = initial.getMetrics();
+        this.compiler = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "hfa-pattern-compiler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.current = new Generation(initial, versions.incrementAndGet());
+    }
+
+    public CompiledAutomaton getCurrent() {
+        return current.automaton;
+    }
+
+    public long getVersion() {
+        return current.version;
+    }
+
+    // Matcher over the current automaton for the calling thread, with the registry's settings; keep it
+    // for the whole scan
+    public Matcher matcher() {
+        CompiledAutomaton automaton = current.automaton;
+        Matcher matcher = matchers.get();
+        if (matcher == null || matcher.getCompiledAutomaton() != automaton) {
+            matcher = automaton.newMatcher();
+            matchers.set(matcher);
+        }
+        if (matcher.getLazyDfaCacheStates() != lazyDfaCacheStates) {
+            matcher.setLazyDfaCacheStates(lazyDfaCacheStates);
+        }
+        matcher.setSinglePassMode(singlePassMode);
+        matcher.setLazyDfaMode(lazyDfaMode);
+        return matcher;
+    }
+
+    public void setSinglePassMode(boolean singlePassMode) {
+        this.singlePassMode = singlePassMode;
+    }
+
+    public boolean isSinglePassMode() {
+        return singlePassMode;
+    }
+
+    public void setLazyDfaMode(boolean lazyDfaMode) {
+        this.lazyDfaMode = lazyDfaMode;
+    }
+
+    public boolean isLazyDfaMode() {
+        return lazyDfaMode;
+    }
+
+    public void setLazyDfaCacheStates(int cacheStates) {
+        if (cacheStates < 2) {
+            throw new IllegalArgumentException("Lazy DFA cache needs at least 2 states: " + cacheStates);
+        }
+        this.lazyDfaCacheStates = cacheStates;
+    }
+
+    public int getLazyDfaCacheStates() {
+        return lazyDfaCacheStates;
+    }
+
+    // Compiles in the background and publishes on success; the future fails with the compiler's
+    // IllegalArgumentException (and the current set stays) when a pattern is rejected. Updates are applied
+    // in submission order.
+    public Future<Long> update(final List<String> patterns) {
+        final List<String> snapshot = new ArrayList<String>(patterns);
+        return compiler.submit(new Callable<Long>() {
+            public Long call() {
+                return publish(compile(snapshot));
+            }
+        });
+    }
+
+    // Publishes an already compiled automaton; returns its version. Only writers synchronize, so versions
+    // are published in order while readers stay lock-free
+    public synchronized long publish(CompiledAutomaton automaton) {
+        Generation next = new Generation(automaton, versions.incrementAndGet());
+        current = next;
+        return next.version;
+    }
+
+    private CompiledAutomaton compile(List<String> patterns) {
+        return new CompiledAutomaton(PatternCompiler.compile(patterns), metrics);
+    }
+
+    public void close() {
+        compiler.shutdown();
+    }
+}
+
+// Research Paper HFA Implementation
+class HighEfficientFA extends FiniteAutomaton {
+
+    // Compiled HFA automata: one dense transition table for every pattern, shared by every matcher
+    private CompiledPatternSet compiledPatterns;
+    private CompiledAutomaton automaton;
+    private Matcher matcher;
+
+    // Compiled character-type judging instrument: one table entry per ASCII character
+    private static final byte CHAR_OTHER = 0;
+    private static final byte CHAR_WHITESPACE = 1;
+    private static final byte CHAR_DIGIT = 2;
+    private static final byte CHAR_LETTER = 3;
+    private static final byte CHAR_OPERATOR = 4;
+    private static final byte CHAR_SYMBOL = 5;
+    private byte[] asciiCharTypes;
+    private char[] nonAsciiOperators;
+    private char[] nonAsciiSymbols;
+
+    public HighEfficientFA() {
+        super();
+        initialize();
+    }
+
+    public HighEfficientFA(List<String> patterns) {
+        super();
+        regexPatterns = new ArrayList<String>(patterns);
+        initialize();
+    }
+
+    public HighEfficientFA(List<String> patterns, Collection<String> keywordList) {
+        super(keywordList);
+        regexPatterns = new ArrayList<String>(patterns);
+        initialize();
+    }
+
+    // Rebuilds an engine from the tables of an automaton image instead of compiling them
+    private HighEfficientFA(Collection<String> keywordList, KeywordRecognizer recognizer, byte[] asciiCharTypes,
+            char[] nonAsciiOperators, char[] nonAsciiSymbols, CompiledPatternSet compiled) {
+        super(keywordList, recognizer);
+        this.asciiCharTypes = asciiCharTypes;
+        this.nonAsciiOperators = nonAsciiOperators;
+        this.nonAsciiSymbols = nonAsciiSymbols;
+        regexPatterns = new ArrayList<String>();
+        for (int p = 0; p < compiled.getPatternCount(); p++) {
+            regexPatterns.add(compiled.getPattern(p));
+        }
+        initialize(compiled);
+    }
+
+    // Loads an engine saved with save(Path): one file map, no pattern compilation
+    public static HighEfficientFA load(Path path) throws IOException {
+        return AutomatonImage.read(path);
+    }
+
+    public void save(Path path) throws IOException {
+        AutomatonImage.write(this, path);
+    }
+
+    private void initialize() {
+        buildCharacterTypes();
+        initialize(PatternCompiler.compile(regexPatterns));
+    }
+
+    private void initialize(CompiledPatternSet compiled) {
+        compiledPatterns = compiled;
+        automaton = new CompiledAutomaton(compiledPatterns, metrics);
+        matcher = automaton.newMatcher();
+
+        // HFA has optimized states - Hopcroft-minimized tables plus the character-type judging instrument
+        recordAutomatonSize(compiledPatterns, compiledPatterns.getLiteralAutomaton().getStorageBytes()
+                + asciiCharTypes.length + (nonAsciiOperators.length + nonAsciiSymbols.length) * Character.BYTES);
+    }
+
+    public CompiledPatternSet getCompiledPatterns() {
+        return compiledPatterns;
+    }
+
+    // The immutable half of the engine: share it across threads and give each thread its own matcher
+    public CompiledAutomaton getCompiledAutomaton() {
+        return automaton;
+    }
+
+    public Matcher newMatcher() {
+        return automaton.newMatcher();
+    }
+
+    // Hot-swappable pattern set seeded with this engine's automaton and matcher settings
+    public PatternSetRegistry newRegistry() {
+        PatternSetRegistry registry = new PatternSetRegistry(automaton);
+        registry.setSinglePassMode(matcher.isSinglePassMode());
+        registry.setLazyDfaMode(matcher.isLazyDfaMode());
+        registry.setLazyDfaCacheStates(matcher.getLazyDfaCacheStates());
+        return registry;
+    }
+
+    // Image payload: auxiliary register layout, keyword and character-type tables, pattern tables
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(Matcher.AUXILIARY_SLOTS);
+        out.writeInt(Matcher.FOUND_FIRST_PART);
+        out.writeInt(Matcher.LOOKING_FOR_SECOND);
+        AutomatonImage.writeStrings(out, keywords.toArray(new String[0]));
+        keywordRecognizer.writeTo(out);
+        AutomatonImage.writeBytes(out, asciiCharTypes);
+        AutomatonImage.writeChars(out, nonAsciiOperators);
+        AutomatonImage.writeChars(out, nonAsciiSymbols);
+        compiledPatterns.writeTo(out);
+    }
+
+    static HighEfficientFA readFrom(ByteBuffer in) throws IOException {
+        if (in.getInt() != Matcher.AUXILIARY_SLOTS || in.getInt() != Matcher.FOUND_FIRST_PART || in.getInt() != Matcher.LOOKING_FOR_SECOND) {
+            throw new IOException("Automaton image uses an incompatible auxiliary register layout");
+        }
+        List<String> keywordList = Arrays.asList(AutomatonImage.readStrings(in));
+        KeywordRecognizer recognizer = KeywordRecognizer.readFrom(in);
+        byte[] charTypes = AutomatonImage.readBytes(in);
+        char[] operatorChars = AutomatonImage.readChars(in);
+        char[] symbolChars = AutomatonImage.readChars(in);
+        AutomatonImage.check(charTypes.length == 128, "character-type table");
+        AutomatonImage.checkSorted(operatorChars, "operator characters");
+        AutomatonImage.checkSorted(symbolChars, "symbol characters");
+        return new HighEfficientFA(keywordList, recognizer, charTypes, operatorChars, symbolChars,
+                CompiledPatternSet.readFrom(in));
+    }
+
+    // Single-pass mode scans the input once for all patterns instead of once per pattern
+    public void setSinglePassMode(boolean singlePassMode) {
+        matcher.setSinglePassMode(singlePassMode);
+    }
+
+    public boolean isSinglePassMode() {
+        return matcher.isSinglePassMode();
+    }
+
+    // Lazy DFA mode runs one combined automaton whose states are built on demand in a bounded cache
+    public void setLazyDfaMode(boolean lazyDfaMode) {
+        matcher.setLazyDfaMode(lazyDfaMode);
+    }
+
+    public boolean isLazyDfaMode() {
+        return matcher.isLazyDfaMode();
+    }
+
+    public void setLazyDfaCacheStates(int cacheStates) {
+        matcher.setLazyDfaCacheStates(cacheStates);
+    }
+
+    public LazyDfaScanner getLazyDfaScanner() {
+        return matcher.getLazyDfaScanner();
+    }
+
+    // Words per record in a batch mask: bit p of record r is in masks[r * getMaskWords() + (p >>> 6)]
+    public int getMaskWords() {
+        return automaton.getMaskWords();
+    }
+
+    public long[] matchBatch(List<? extends CharSequence> records) {
+        return matcher.matchBatch(records);
+    }
+
+    public long[] matchBatch(CharSequence buffer, int[] recordOffsets) {
+        return matcher.matchBatch(buffer, recordOffsets);
+    }
+
+    public void matchBatch(CharSequence buffer, int[] recordOffsets, long[] masks) {
+        matcher.matchBatch(buffer, recordOffsets, masks);
+    }
+
+    public StreamingMatcher createStreamingMatcher() {
+        return new StreamingMatcher(compiledPatterns, metrics);
+    }
+
+    public FileScanResult scanFile(Path file) throws IOException {
+        return new MappedFileScanner(automaton.getUtf8Patterns(), metrics).scan(file);
+    }
+
+    // Parallel mode splits the input across the common fork/join pool
+    public List<PatternMatchResult> matchPatternsParallel(String input) {
+        long startTime = System.nanoTime();
+        boolean recorded = metrics.beginScan();
+        List<PatternMatchResult> results = new ParallelPatternMatcher(compiledPatterns, metrics).match(input, recorded);
+        long endTime = System.nanoTime();
+        metrics.addMatchingTime((endTime - startTime) / 1_000_000.0);
+        if (recorded) {
+            metrics.recordMatchLatency(endTime - startTime);
+        }
+        return results;
+    }
+
+    // Counts locally and records once per call: two table accesses per lexer step (judge and route) and
+    // one transition per emitted token
+    public void tokenize(CharSequence code, TokenSink sink) {
+        boolean recorded = metrics.beginScan();
+        long transitions = 0;
+        long accesses = 0;
+        int pos = 0;
+
+        while (pos < code.length()) {
+            // HFA Judging Instrument: Predict character type for intelligent routing
+            int charType = judgeCharacterType(code.charAt(pos));
+
+            if (charType == CHAR_WHITESPACE) {
+                pos++;
+                continue;
+            }
+            accesses += 2;
+            if (charType != CHAR_OTHER) {
+                transitions++;
+            }
+
+            // Intelligent path selection based on judging instrument
+            pos = intelligentTransition(pos, code, charType, sink);
+        }
+        if (recorded) {
+            metrics.recordScan(transitions, accesses);
+        }
+    }
+
+    // One lexer step: skips whitespace, then emits at most one token; returns the position after it.
+    // Every token starts in the same lexer state, which is what lets IncrementalLexer restart anywhere.
+    int lexStep(CharSequence code, int pos, TokenSink sink) {
+        while (pos < code.length()) {
+            int charType = judgeCharacterType(code.charAt(pos));
+
+            if (charType == CHAR_WHITESPACE) {
+                pos++;
+                continue;
+            }
+            return intelligentTransition(pos, code, charType, sink);
+        }
+        return pos;
+    }
+
+    // IncrementalLexer records its re-lexed tokens once per edit, with tokenize's per-token costs
+    void recordLexedTokens(boolean recorded, long tokens) {
+        if (recorded) {
+            metrics.recordScan(tokens, 2 * tokens);
+        }
+    }
+
+    public IncrementalLexer createIncrementalLexer(CharSequence text) {
+        return new IncrementalLexer(this, text);
+    }
+
+    // Compiles the operator and symbol sets into the character-type table
+    private void buildCharacterTypes() {
+        asciiCharTypes = new byte[128];
+        for (char c = 0; c < 128; c++) {
+            if (Character.isWhitespace(c)) {
+                asciiCharTypes[c] = CHAR_WHITESPACE;
+            } else if (Character.isDigit(c)) {
+                asciiCharTypes[c] = CHAR_DIGIT;
+            } else if (isLetter(c)) {
+                asciiCharTypes[c] = CHAR_LETTER;
+            } else if (operators.contains(String.valueOf(c))) {
+                asciiCharTypes[c] = CHAR_OPERATOR;
+            } else if (symbols.contains(String.valueOf(c))) {
+                asciiCharTypes[c] = CHAR_SYMBOL;
+            }
+        }
+        nonAsciiOperators = nonAsciiSingleChars(operators);
+        nonAsciiSymbols = nonAsciiSingleChars(symbols);
+    }
+
+    private static char[] nonAsciiSingleChars(Set<String> entries) {
+        StringBuilder chars = new StringBuilder();
+        for (String entry : entries) {
+            if (entry.length() == 1 && entry.charAt(0) >= 128) {
+                chars.append(entry.charAt(0));
+            }
+        }
+        char[] sorted = chars.toString().toCharArray();
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    // Judging Instrument for character type prediction: table lookup, no allocation
+    private int judgeCharacterType(char c) {
+        if (c < 128) {
+            return asciiCharTypes[c];
+        }
+        if (Character.isWhitespace(c))
+            return CHAR_WHITESPACE;
+        if (Character.isDigit(c))
+            return CHAR_DIGIT;
+        if (isLetter(c))
+            return CHAR_LETTER;
+        if (Arrays.binarySearch(nonAsciiOperators, c) >= 0)
+            return CHAR_OPERATOR;
+        if (Arrays.binarySearch(nonAsciiSymbols, c) >= 0)
+            return CHAR_SYMBOL;
+        return CHAR_OTHER;
+    }
+
+    // Intelligent transition based on judging instruments; returns the position after the token
+    private int intelligentTransition(int pos, CharSequence code, int charType, TokenSink sink) {
+        switch (charType) {
+            case CHAR_DIGIT:
+                return processNumber(pos, code, sink);
+            case CHAR_LETTER:
+                return processIdentifier(pos, code, sink);
+            case CHAR_OPERATOR:
+                return processOperator(pos, code, sink);
+            case CHAR_SYMBOL:
+                return processSymbol(pos, sink);
+            default:
+                return pos + 1;
+        }
+    }
+
+    // Reduced transitions due to intelligent routing: one per emitted token, counted by the caller
+    private void emitToken(TokenSink sink, TokenKind kind, int start, int end) {
+        sink.token(kind, start, end);
+    }
+
+    private int processNumber(int pos, CharSequence code, TokenSink sink) {
+        int start = pos;
+        while (pos < code.length() &&
+                (judgeCharacterType(code.charAt(pos)) == CHAR_DIGIT || code.charAt(pos) == '.')) {
+            pos++;
+        }
+        emitToken(sink, TokenKind.NUMBER, start, pos);
+        return pos;
+    }
+
+    private int processIdentifier(int pos, CharSequence code, TokenSink sink) {
+        int start = pos;
+        // Keyword trie folded into the identifier scan: no substring, no hashing
+        int keywordNode = keywordRecognizer.start();
+        while (pos < code.length()) {
+            char c = code.charAt(pos);
+            int charType = judgeCharacterType(c);
+            if (charType != CHAR_LETTER && charType != CHAR_DIGIT) {
                 break;
             }
+            keywordNode = keywordRecognizer.next(keywordNode, c);
+            pos++;
+        }
+        boolean keyword = keywordRecognizer.isKeyword(keywordNode);
+        emitToken(sink, keyword ? TokenKind.KEYWORD : TokenKind.IDENTIFIER, start, pos);
+        return pos;
+    }
+
+    private int processOperator(int pos, CharSequence code, TokenSink sink) {
+        if (code.charAt(pos) == '=' && pos < code.length() - 1 && code.charAt(pos + 1) == '=') {
+            emitToken(sink, TokenKind.OPERATOR, pos, pos + 2);
+            return pos + 2;
+        }
+        emitToken(sink, TokenKind.OPERATOR, pos, pos + 1);
+        return pos + 1;
+    }
+
+    private int processSymbol(int pos, TokenSink sink) {
+        emitToken(sink, TokenKind.SYMBOL, pos, pos + 1);
+        return pos + 1;
+    }
+
+    public List<PatternMatchResult> matchPatterns(String input) {
+        return matcher.matchPatterns(input);
+    }
+
+    public MatchResultSet matchPatterns(String input, MatchResultSet results) {
+        return matcher.matchPatterns(input, results);
+    }
+
+    public boolean matchesAny(CharSequence input) {
+        return matcher.matchesAny(input);
+    }
+
+    public int countMatches(CharSequence input) {
+        return matcher.countMatches(input);
+    }
+
+    public long[] whichMatch(CharSequence input, long[] mask) {
+        return matcher.whichMatch(input, mask);
+    }
+
+    public boolean matchesAny(ByteBuffer input) {
+        return matcher.matchesAny(input);
+    }
+
+    public int countMatches(ByteBuffer input) {
+        return matcher.countMatches(input);
+    }
+
+    public long[] whichMatch(ByteBuffer input, long[] mask) {
+        return matcher.whichMatch(input, mask);
+    }
+
+    public MatchResultSet matchPatterns(ByteBuffer input, MatchResultSet results) {
+        return matcher.matchPatterns(input, results);
+    }
+}
+
+// Incremental Lexer Class: re-lexes only the tokens an edit touches, over gap-buffered text and tokens
+class IncrementalLexer {
+    private static final TokenKind[] KINDS = TokenKind.values();
+
+    private final HighEfficientFA engine;
+    private final GapText text;
+
+    // Tokens [0, gapStart) hold absolute offsets; tokens [gapEnd, capacity) hold text length minus offset
+    private int[] starts;
+    private int[] ends;
+    private byte[] kinds;
+    private int gapStart;
+    private int gapEnd;
+
+    // Token range replaced by the last edit: [firstChanged, firstChanged + insertedTokens)
+    private int firstChanged;
+    private int removedTokens;
+    private int insertedTokens;
+
+    private final LastToken lastToken = new LastToken();
+
+    // Receives the single token a lexer step emits
+    private static class LastToken implements TokenSink {
+        boolean emitted;
+        TokenKind kind;
+        int start;
+        int end;
+
+        public void token(TokenKind kind, int start, int end) {
+            this.emitted = true;
+            this.kind = kind;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    // Document text as a gap buffer; the lexer reads it through CharSequence
+    private static class GapText implements CharSequence {
+        private char[] buffer;
+        private int gapStart;
+        private int gapEnd;
+
+        GapText(CharSequence initial) {
+            buffer = new char[initial.length() + 64];
+            for (int i = 0; i < initial.length(); i++) {
+                buffer[i] = initial.charAt(i);
+            }
+            gapStart = initial.length();
+            gapEnd = buffer.length;
+        }
+
+        public int length() {
+            return buffer.length - (gapEnd - gapStart);
+        }
+
+        public char charAt(int index) {
+            return index < gapStart ? buffer[index] : buffer[index + gapEnd - gapStart];
+        }
+
+        public CharSequence subSequence(int start, int end) {
+            return toString().substring(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return new StringBuilder(length()).append(buffer, 0, gapStart)
+                    .append(buffer, gapEnd, buffer.length - gapEnd).toString();
+        }
+
+        void replace(int offset, int removed, CharSequence inserted) {
+            if (offset < gapStart) {
+                int count = gapStart - offset;
+                System.arraycopy(buffer, offset, buffer, gapEnd - count, count);
+                gapStart -= count;
+                gapEnd -= count;
+            } else if (offset > gapStart) {
+                int count = offset - gapStart;
+                System.arraycopy(buffer, gapEnd, buffer, gapStart, count);
+                gapStart += count;
+                gapEnd += count;
+            }
+            gapEnd += removed;
+            if (gapEnd - gapStart < inserted.length()) {
+                int tail = buffer.length - gapEnd;
+                char[] grown = new char[Math.max(buffer.length * 2, length() + inserted.length() + 64)];
+                System.arraycopy(buffer, 0, grown, 0, gapStart);
+                System.arraycopy(buffer, gapEnd, grown, grown.length - tail, tail);
+                buffer = grown;
+                gapEnd = grown.length - tail;
+            }
+            for (int i = 0; i < inserted.length(); i++) {
+                buffer[gapStart++] = inserted.charAt(i);
+            }
+        }
+    }
+
+    public IncrementalLexer(HighEfficientFA engine, CharSequence initialText) {
+        this.engine = engine;
+        this.text = new GapText(initialText);
+        int capacity = 64;
+        starts = new int[capacity];
+        ends = new int[capacity];
+        kinds = new byte[capacity];
+        gapEnd = capacity;
+        boolean recorded = engine.getMetrics().beginScan();
+        for (int pos = 0; pos < text.length();) {
+            lastToken.emitted = false;
+            pos = engine.lexStep(text, pos, lastToken);
+            if (lastToken.emitted) {
+                insertToken(lastToken.kind, lastToken.start, lastToken.end);
+            }
         }
+        insertedTokens = gapStart;
+        engine.recordLexedTokens(recorded, insertedTokens);
+    }
 
-        return result;
+    public int getTokenCount() {
+        return gapStart + starts.length - gapEnd;
+    }
+
+    public TokenKind getTokenKind(int index) {
+        return KINDS[kinds[physical(index)]];
+    }
+
+    public int getTokenStart(int index) {
+        int slot = physical(index);
+        return index < gapStart ? starts[slot] : text.length() - starts[slot];
+    }
+
+    public int getTokenEnd(int index) {
+        int slot = physical(index);
+        return index < gapStart ? ends[slot] : text.length() - ends[slot];
+    }
+
+    // Replays the current token stream, e.g. into a FormattedTokenSink over getText()
+    public void tokens(TokenSink sink) {
+        for (int i = 0; i < getTokenCount(); i++) {
+            sink.token(getTokenKind(i), getTokenStart(i), getTokenEnd(i));
+        }
+    }
+
+    public String getText() {
+        return text.toString();
+    }
+
+    public int getTextLength() {
+        return text.length();
+    }
+
+    public int getFirstChangedToken() {
+        return firstChanged;
+    }
+
+    public int getRemovedTokenCount() {
+        return removedTokens;
+    }
+
+    public int getInsertedTokenCount() {
+        return insertedTokens;
+    }
+
+    // Replaces removed characters at offset with inserted and re-lexes the damaged span; the changed
+    // token range is reported by getFirstChangedToken, getRemovedTokenCount and getInsertedTokenCount
+    public void edit(int offset, int removed, CharSequence inserted) {
+        int oldLength = text.length();
+        if (offset < 0 || removed < 0 || offset > oldLength - removed) {
+            throw new IllegalArgumentException("Edit [" + offset + ", " + offset + " + " + removed
+                    + ") outside text of length " + oldLength);
+        }
+
+        // The first token ending at or after the edit may grow into it or read it as lookahead
+        int first = firstTokenEndingAtOrAfter(offset);
+        int restart = first < getTokenCount() ? Math.min(offset, getTokenStart(first)) : offset;
+        moveGap(first);
+
+        text.replace(offset, removed, inserted);
+        int length = text.length();
+        int editEnd = offset + inserted.length();
+
+        // Old tokens after the gap now read as shifted into the new text
+        int old = gapEnd;
+        int tokensBefore = gapStart;
+        int discarded = 0;
+        boolean synced = false;
+        boolean recorded = engine.getMetrics().beginScan();
+        long lexed = 0;
+        int pos = restart;
+        while (pos < length && !synced) {
+            lastToken.emitted = false;
+            pos = engine.lexStep(text, pos, lastToken);
+            if (!lastToken.emitted) {
+                continue;
+            }
+            lexed++;
+            while (old < starts.length && length - starts[old] < lastToken.start) {
+                old++;
+                discarded++;
+            }
+            synced = lastToken.start >= editEnd && old < starts.length && length - starts[old] == lastToken.start;
+            if (!synced) {
+                gapEnd = old;
+                insertToken(lastToken.kind, lastToken.start, lastToken.end);
+                old = gapEnd;
+            }
+        }
+        if (!synced) {
+            discarded += starts.length - old;
+            old = starts.length;
+        }
+        gapEnd = old;
+        engine.recordLexedTokens(recorded, lexed);
+
+        firstChanged = first;
+        removedTokens = discarded;
+        insertedTokens = gapStart - tokensBefore;
     }
 
-    // Core HFA Decision Function (Research Paper Logic)
-    private HFAState determineNextState(HFAState currentState, char c, String pattern, int pos, String input) {
-        metrics.incrementMemoryAccesses(2); // Check auxiliary vars and current state
+    private int physical(int index) {
+        if (index < 0 || index >= getTokenCount()) {
+            throw new IndexOutOfBoundsException("Token " + index + " of " + getTokenCount());
+        }
+        return index < gapStart ? index : index + gapEnd - gapStart;
+    }
+
+    private int firstTokenEndingAtOrAfter(int offset) {
+        int low = 0;
+        int high = getTokenCount();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getTokenEnd(mid) < offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // Moves the token gap so that exactly index tokens precede it, converting offsets as they cross
+    private void moveGap(int index) {
+        int length = text.length();
+        while (gapStart > index) {
+            gapStart--;
+            gapEnd--;
+            starts[gapEnd] = length - starts[gapStart];
+            ends[gapEnd] = length - ends[gapStart];
+            kinds[gapEnd] = kinds[gapStart];
+        }
+        while (gapStart < index) {
+            starts[gapStart] = length - starts[gapEnd];
+            ends[gapStart] = length - ends[gapEnd];
+            kinds[gapStart] = kinds[gapEnd];
+            gapStart++;
+            gapEnd++;
+        }
+    }
 
-        if (pattern.equals(".*ab.*cd")) {
-            return processPattern_ab_cd_HFA(currentState, c, pos, input);
-        } else if (pattern.equals(".*ef.*gh")) {
-            return processPattern_ef_gh_HFA(currentState, c, pos, input);
-        } else if (pattern.equals(".*abc.*def")) {
-            return processPattern_abc_def_HFA(currentState, c, pos, input);
-        } else if (pattern.equals(".*abcde.*fghnm")) {
-            return processPattern_abcde_fghnm_HFA(currentState, c, pos, input);
+    private void insertToken(TokenKind kind, int start, int end) {
+        if (gapStart == gapEnd) {
+            int tail = starts.length - gapEnd;
+            int capacity = starts.length * 2;
+            starts = grow(starts, capacity, tail);
+            ends = grow(ends, capacity, tail);
+            byte[] grownKinds = new byte[capacity];
+            System.arraycopy(kinds, 0, grownKinds, 0, gapStart);
+            System.arraycopy(kinds, gapEnd, grownKinds, capacity - tail, tail);
+            kinds = grownKinds;
+            gapEnd = capacity - tail;
         }
+        starts[gapStart] = start;
+        ends[gapStart] = end;
+        kinds[gapStart] = (byte) kind.ordinal();
+        gapStart++;
+    }
+
+    private int[] grow(int[] values, int capacity, int tail) {
+        int[] grown = new int[capacity];
+        System.arraycopy(values, 0, grown, 0, gapStart);
+        System.arraycopy(values, gapEnd, grown, capacity - tail, tail);
+        return grown;
+    }
+}
+
+// Workload Generator Class: seeded synthetic corpora for the lexer and the pattern matchers
+class WorkloadGenerator {
+    private static final String[] SOURCE_LINES = {
+            "if (x == 10) return y + z;",
+            "while (count < 100) sum = sum + 1;",
+            "float result = 42.5 + value;",
+            "int a = 5; char b = c;",
+            "if (num1 == 42.0) { result = num1 + value; }",
+            "else { total = total * rate / 3.14159; }"
+    };
+
+    // Upper-case filler never contains the lower-case pattern literals
+    private static final String[] LOG_FILLER = {
+            "GET", "POST", "/API/V1/USERS", "/STATIC/APP.JS", "HTTP/1.1", "200", "404", "503",
+            "1532MS", "12MS", "[INFO]", "[WARN]", "10.0.0.1", "-", "USER=42", "SESSION=9F3A"
+    };
+
+    private final Random random;
+
+    public WorkloadGenerator(long seed) {
+        random = new Random(seed);
+    }
 
-        return currentState;
+    public String sourceCode(int size) {
+        StringBuilder text = new StringBuilder(size + 64);
+        while (text.length() < size) {
+            text.append(SOURCE_LINES[random.nextInt(SOURCE_LINES.length)]).append('\n');
+        }
+        text.setLength(size);
+        return text.toString();
     }
 
-    // HFA Implementation for .*ab.*cd pattern
-    private HFAState processPattern_ab_cd_HFA(HFAState state, char c, int pos, String input) {
-        if (state == HFAState.START) {
-            if (c == 'a') {
-                // Judging Instrument: Look ahead to optimize path
-                if (pos + 1 < input.length() && input.charAt(pos + 1) == 'b') {
-                    auxiliaryVars.put("found_first_part", true);
-                    metrics.incrementMemoryAccesses();
-                    return HFAState.FOUND_AB;
+    // Log lines: matchRate of them hold every literal of one pattern in order, nearMissRate of them
+    // stop one literal (or, for single-literal rules, one character) short
+    public String logText(int size, List<String> patterns, double matchRate, double nearMissRate) {
+        if (matchRate < 0 || nearMissRate < 0 || matchRate + nearMissRate > 1) {
+            throw new IllegalArgumentException("Match and near-miss rates must be in [0, 1] and sum to at most 1");
+        }
+        List<String[]> parts = new ArrayList<String[]>();
+        for (String pattern : patterns) {
+            parts.add(PatternCompiler.parsePattern(pattern));
+        }
+
+        StringBuilder text = new StringBuilder(size + 128);
+        while (text.length() < size) {
+            double roll = random.nextDouble();
+            String[] literals = null;
+            if (!parts.isEmpty() && roll < matchRate + nearMissRate) {
+                literals = parts.get(random.nextInt(parts.size()));
+                if (roll >= matchRate) {
+                    literals = nearMiss(literals);
                 }
-                return HFAState.FOUND_A;
-            }
-            return HFAState.START;
-        } else if (state == HFAState.FOUND_A) {
-            if (c == 'b') {
-                auxiliaryVars.put("found_first_part", true);
-                auxiliaryVars.put("looking_for_second", true);
-                metrics.incrementMemoryAccesses(2);
-                return HFAState.FOUND_AB;
-            } else if (c == 'a') {
-                return HFAState.FOUND_A;
-            }
-            return HFAState.START;
-        } else if (state == HFAState.FOUND_AB) {
-            if (auxiliaryVars.get("found_first_part") && c == 'c') {
-                // Judging Instrument: Look ahead for 'd'
-                if (pos + 1 < input.length() && input.charAt(pos + 1) == 'd') {
-                    return HFAState.ACCEPT;
+            }
+            int words = 6 + random.nextInt(6);
+            int nextLiteral = 0;
+            for (int w = 0; w < words; w++) {
+                text.append(LOG_FILLER[random.nextInt(LOG_FILLER.length)]).append(' ');
+                if (literals != null && nextLiteral < literals.length && random.nextInt(3) == 0) {
+                    text.append(literals[nextLiteral++]).append(' ');
                 }
-                return HFAState.LOOKING_FOR_D;
-            } else if (c == 'a') {
-                return HFAState.FOUND_A;
             }
-            return state;
-        } else if (state == HFAState.LOOKING_FOR_D) {
-            if (c == 'd') {
-                return HFAState.ACCEPT;
-            } else if (c == 'a') {
-                return HFAState.FOUND_A;
+            while (literals != null && nextLiteral < literals.length) {
+                text.append(literals[nextLiteral++]).append(' ');
             }
-            return HFAState.FOUND_AB;
+            text.append('\n');
+        }
+        text.setLength(size);
+        return text.toString();
+    }
+
+    // Random .*lit1.*lit2 rules with lower-case literals of 4 to 8 characters
+    public List<String> patterns(int count) {
+        List<String> patterns = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            patterns.add(".*" + literal() + ".*" + literal());
+        }
+        return patterns;
+    }
+
+    private static String[] nearMiss(String[] literals) {
+        if (literals.length == 0) {
+            return literals;
+        } else if (literals.length > 1) {
+            return Arrays.copyOf(literals, literals.length - 1);
+        }
+        String last = literals[0];
+        return last.length() > 1 ? new String[] { last.substring(0, last.length() - 1) } : new String[0];
+    }
+
+    private String literal() {
+        int length = 4 + random.nextInt(5);
+        StringBuilder literal = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            literal.append((char) ('a' + random.nextInt(26)));
+        }
+        return literal.toString();
+    }
+}
+
+// Engine Factory Class: builds an engine by name with metrics set to the requested mode
+class EngineFactory {
+    public static final String[] ENGINES = { "FA", "XFA", "HFA", "HFA_SINGLE_PASS", "HFA_LAZY_DFA" };
+
+    public static FiniteAutomaton create(String engine, List<String> patterns, MetricsMode mode) {
+        FiniteAutomaton automaton;
+        if (engine.equals("FA")) {
+            automaton = patterns == null ? new TraditionalFA()
+                    : new TraditionalFA(patterns, FiniteAutomaton.DEFAULT_KEYWORDS);
+        } else if (engine.equals("XFA")) {
+            automaton = patterns == null ? new ExtendedFA()
+                    : new ExtendedFA(patterns, FiniteAutomaton.DEFAULT_KEYWORDS);
+        } else if (engine.equals("HFA") || engine.equals("HFA_SINGLE_PASS") || engine.equals("HFA_LAZY_DFA")) {
+            HighEfficientFA hfa = patterns == null ? new HighEfficientFA() : new HighEfficientFA(patterns);
+            hfa.setSinglePassMode(engine.equals("HFA_SINGLE_PASS"));
+            hfa.setLazyDfaMode(engine.equals("HFA_LAZY_DFA"));
+            automaton = hfa;
+        } else {
+            throw new IllegalArgumentException("Unknown engine: " + engine);
+        }
+        automaton.getMetrics().setMode(mode);
+        return automaton;
+    }
+}
+
+// Batch Benchmark Class: headless runs over generated corpora, reported as CSV or JSON
+class BatchBenchmark {
+    private static final String[] COLUMNS = {
+            "workload", "engine", "input_bytes", "iterations", "throughput_mb_s", "p50_ms", "p99_ms",
+            "state_transitions", "memory_accesses", "allocated_bytes", "results"
+    };
+
+    private long seed = 42L;
+    private int size = 1 << 20;
+    private int warmup = 5;
+    private int iterations = 20;
+    private int rules = 0;
+    private double matchRate = 0.01;
+    private double nearMissRate = 0.05;
+    private String format = "csv";
+    private String output = null;
+    private List<String> workloads = Arrays.asList("lexer", "patterns");
+    // FA pattern matching is quadratic in the input size, so it only runs when asked for
+    private List<String> engines = Arrays.asList("XFA", "HFA", "HFA_SINGLE_PASS");
+
+    private final List<String[]> rows = new ArrayList<String[]>();
+
+    // Counts tokens without formatting them, so only the lexer itself is timed
+    static class CountingTokenSink implements TokenSink {
+        private int count;
+
+        public void token(TokenKind kind, int start, int end) {
+            count++;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public void reset() {
+            count = 0;
+        }
+    }
+
+    // Returns the process exit code: 0 on success, 2 on bad arguments, 1 on I/O failure
+    public static int run(String[] args) {
+        if (Arrays.asList(args).contains("--help")) {
+            printUsage(System.out);
+            return 0;
         }
+        BatchBenchmark benchmark = new BatchBenchmark();
+        try {
+            benchmark.parse(args);
+            benchmark.runAll();
+            benchmark.write();
+        } catch (IllegalArgumentException e) {
+            System.err.println("error: " + e.getMessage());
+            printUsage();
+            return 2;
+        } catch (IOException e) {
+            System.err.println("error: could not write results: " + e.getMessage());
+            return 1;
+        }
+        return 0;
+    }
 
-        return state;
+    public static void printUsage() {
+        printUsage(System.err);
     }
 
-    // HFA Implementation for .*ef.*gh pattern
-    private HFAState processPattern_ef_gh_HFA(HFAState state, char c, int pos, String input) {
-        if (state == HFAState.START) {
-            if (c == 'e') {
-                // Judging Instrument: Look ahead optimization
-                if (pos + 1 < input.length() && input.charAt(pos + 1) == 'f') {
-                    auxiliaryVars.put("found_first_part", true);
-                    metrics.incrementMemoryAccesses();
-                    return HFAState.LOOKING_FOR_G;
+    public static void printUsage(PrintStream out) {
+        out.println("usage: java -jar hfa-pattern-matching-engine-1.0.jar --batch [options]");
+        out.println("  --workloads lexer,patterns   corpora to generate (default: both)");
+        out.println("  --engines XFA,HFA,...        FA, XFA, HFA, HFA_SINGLE_PASS, HFA_LAZY_DFA (default: XFA,HFA,HFA_SINGLE_PASS)");
+        out.println("  --size BYTES                 input size, K/M/G suffixes allowed (default: 1M)");
+        out.println("  --seed N                     generator seed (default: 42)");
+        out.println("  --warmup N                   untimed iterations (default: 5)");
+        out.println("  --iterations N               timed iterations (default: 20)");
+        out.println("  --rules N                    generated .*a.*b rules instead of the built-ins");
+        out.println("  --match-rate R               fraction of log lines that match a rule (default: 0.01)");
+        out.println("  --near-miss-rate R           fraction of log lines one literal short (default: 0.05)");
+        out.println("  --format csv|json            output format (default: csv)");
+        out.println("  --output PATH                write results to PATH instead of stdout");
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + option);
+            }
+            String value = args[++i];
+            if (option.equals("--workloads")) {
+                workloads = Arrays.asList(value.split(","));
+                for (String workload : workloads) {
+                    if (!workload.equals("lexer") && !workload.equals("patterns")) {
+                        throw new IllegalArgumentException("Unknown workload: " + workload);
+                    }
                 }
-                return HFAState.LOOKING_FOR_F;
+            } else if (option.equals("--engines")) {
+                engines = Arrays.asList(value.split(","));
+                for (String engine : engines) {
+                    if (!Arrays.asList(EngineFactory.ENGINES).contains(engine)) {
+                        throw new IllegalArgumentException("Unknown engine: " + engine);
+                    }
+                }
+            } else if (option.equals("--size")) {
+                size = parseSize(value);
+            } else if (option.equals("--seed")) {
+                seed = parseLong(option, value);
+            } else if (option.equals("--warmup")) {
+                warmup = (int) parseLong(option, value);
+            } else if (option.equals("--iterations")) {
+                iterations = (int) parseLong(option, value);
+            } else if (option.equals("--rules")) {
+                rules = (int) parseLong(option, value);
+            } else if (option.equals("--match-rate")) {
+                matchRate = parseDouble(option, value);
+            } else if (option.equals("--near-miss-rate")) {
+                nearMissRate = parseDouble(option, value);
+            } else if (option.equals("--format")) {
+                if (!value.equals("csv") && !value.equals("json")) {
+                    throw new IllegalArgumentException("Unknown format: " + value);
+                }
+                format = value;
+            } else if (option.equals("--output")) {
+                output = value;
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + option);
             }
-            return HFAState.START;
-        } else if (state == HFAState.LOOKING_FOR_F) {
-            if (c == 'f') {
-                auxiliaryVars.put("found_first_part", true);
-                metrics.incrementMemoryAccesses();
-                return HFAState.LOOKING_FOR_G;
-            } else if (c == 'e') {
-                return HFAState.LOOKING_FOR_F;
-            }
-            return HFAState.START;
-        } else if (state == HFAState.LOOKING_FOR_G) {
-            if (auxiliaryVars.get("found_first_part") && c == 'g') {
-                // Judging Instrument: Look ahead for 'h'
-                if (pos + 1 < input.length() && input.charAt(pos + 1) == 'h') {
-                    return HFAState.ACCEPT;
+        }
+        if (warmup < 0 || iterations < 1 || rules < 0) {
+            throw new IllegalArgumentException("warmup and rules must be >= 0, iterations >= 1");
+        }
+    }
+
+    private static int parseSize(String value) {
+        String digits = value.toUpperCase();
+        long multiplier = 1;
+        if (digits.endsWith("K")) {
+            multiplier = 1L << 10;
+        } else if (digits.endsWith("M")) {
+            multiplier = 1L << 20;
+        } else if (digits.endsWith("G")) {
+            multiplier = 1L << 30;
+        }
+        if (multiplier > 1) {
+            digits = digits.substring(0, digits.length() - 1);
+        }
+        long bytes = parseLong("--size", digits) * multiplier;
+        if (bytes < 1 || bytes > Integer.MAX_VALUE - 128) {
+            throw new IllegalArgumentException("Size out of range: " + value);
+        }
+        return (int) bytes;
+    }
+
+    private static long parseLong(String option, String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number for " + option + ": " + value);
+        }
+    }
+
+    private static double parseDouble(String option, String value) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number for " + option + ": " + value);
+        }
+    }
+
+    private void runAll() {
+        WorkloadGenerator generator = new WorkloadGenerator(seed);
+        List<String> patterns = rules > 0 ? generator.patterns(rules) : null;
+        List<String> corpusPatterns = patterns != null ? patterns : FiniteAutomaton.DEFAULT_PATTERNS;
+
+        for (String workload : workloads) {
+            String input = workload.equals("lexer") ? generator.sourceCode(size)
+                    : generator.logText(size, corpusPatterns, matchRate, nearMissRate);
+            for (String engine : engines) {
+                // The lexer does not depend on the rule set, so FA and XFA still take part
+                boolean lexer = workload.equals("lexer");
+                FiniteAutomaton automaton = EngineFactory.create(engine, lexer ? null : patterns,
+                        MetricsMode.DISABLED);
+                rows.add(measure(workload, engine, automaton, input, lexer));
+            }
+        }
+    }
+
+    private String[] measure(String workload, String engine, FiniteAutomaton automaton, String input,
+            boolean lexer) {
+        for (int i = 0; i < warmup; i++) {
+            runOnce(automaton, input, lexer);
+        }
+
+        long[] latencies = new long[iterations];
+        long allocatedBefore = allocatedBytes();
+        long totalNanos = 0;
+        int results = 0;
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            results = runOnce(automaton, input, lexer);
+            latencies[i] = System.nanoTime() - start;
+            totalNanos += latencies[i];
+        }
+        long allocatedAfter = allocatedBytes();
+        Arrays.sort(latencies);
+
+        // One extra counted pass keeps the metric bookkeeping out of the timed iterations
+        automaton.getMetrics().reset();
+        automaton.getMetrics().setMode(MetricsMode.FULL);
+        runOnce(automaton, input, lexer);
+
+        double seconds = totalNanos / 1e9;
+        double megabytes = (double) input.length() * iterations / (1 << 20);
+        long allocated = allocatedBefore < 0 || allocatedAfter < 0 ? -1
+                : (allocatedAfter - allocatedBefore) / iterations;
+        return new String[] {
+                workload, engine, String.valueOf(input.length()), String.valueOf(iterations),
+                String.format(Locale.ROOT, "%.3f", megabytes / seconds),
+                String.format(Locale.ROOT, "%.3f", percentile(latencies, 0.50) / 1e6),
+                String.format(Locale.ROOT, "%.3f", percentile(latencies, 0.99) / 1e6),
+                String.valueOf(automaton.getMetrics().getStateTransitions()),
+                String.valueOf(automaton.getMetrics().getMemoryAccesses()),
+                String.valueOf(allocated), String.valueOf(results)
+        };
+    }
+
+    // Token count for the lexer, matched pattern count for the matchers
+    private static int runOnce(FiniteAutomaton automaton, String input, boolean lexer) {
+        if (lexer) {
+            CountingTokenSink sink = new CountingTokenSink();
+            automaton.tokenize(input, sink);
+            return sink.count;
+        }
+        int matched = 0;
+        for (PatternMatchResult result : automaton.matchPatterns(input)) {
+            if (result.isMatched()) {
+                matched++;
+            }
+        }
+        return matched;
+    }
+
+    // Nearest-rank percentile over sorted samples
+    private static long percentile(long[] sorted, double percentile) {
+        int rank = (int) Math.ceil(percentile * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    // Bytes allocated by this thread so far, or -1 when the JVM does not expose it
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = java.lang.management.ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+                return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    private void write() throws IOException {
+        StringBuilder text = new StringBuilder();
+        if (format.equals("csv")) {
+            text.append(String.join(",", COLUMNS)).append('\n');
+            for (String[] row : rows) {
+                text.append(String.join(",", row)).append('\n');
+            }
+        } else {
+            text.append("[\n");
+            for (int r = 0; r < rows.size(); r++) {
+                text.append("  {");
+                for (int c = 0; c < COLUMNS.length; c++) {
+                    // workload and engine are strings, every other column is numeric
+                    String value = c < 2 ? "\"" + rows.get(r)[c] + "\"" : rows.get(r)[c];
+                    text.append(c > 0 ? ", " : "").append('"').append(COLUMNS[c]).append("\": ").append(value);
+                }
+                text.append(r + 1 < rows.size() ? "},\n" : "}\n");
+            }
+            text.append("]\n");
+        }
+
+        if (output == null) {
+            System.out.print(text);
+        } else {
+            Files.write(Paths.get(output), text.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
+
+// Match Service Class: localhost TCP matching; one selector thread reads frames, a bounded pool serves them
+class MatchService implements Closeable {
+    static final byte PAYLOAD_TEXT = 0;
+    static final byte PAYLOAD_BYTES = 1;
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_BUSY = 1;
+    static final byte STATUS_ERROR = 2;
+
+    public static final int DEFAULT_PORT = 7878;
+    public static final int DEFAULT_QUEUE = 1024;
+    public static final int DEFAULT_MAX_PAYLOAD = 16 << 20;
+    public static final long DEFAULT_PAYLOAD_BUDGET = 256L << 20;
+    // Idle connections are closed after this long; they hold no worker while they wait
+    private static final long IDLE_TIMEOUT_MILLIS = 30_000;
+    private static final int HEADER_BYTES = 5;
+
+    private final HighEfficientFA engine;
+    private final PatternSetRegistry registry;
+    private final int maxPayload;
+    private final long payloadBudget;
+    // Payload bytes reserved by requests being read, queued or served; never above payloadBudget
+    private final AtomicLong payloadBytes = new AtomicLong();
+    // Selector-thread buffer that swallows the payload of a shed request
+    private final ByteBuffer discardBuffer = ByteBuffer.allocate(64 << 10);
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final ThreadPoolExecutor workers;
+    private final Thread selectorThread;
+    private final AtomicLong shedRequests = new AtomicLong();
+    private volatile boolean running = true;
+
+    // Connections whose response a worker has finished; the selector thread picks them up to write
+    private final ConcurrentLinkedQueue<Connection> responses = new ConcurrentLinkedQueue<Connection>();
+
+    // Per-worker buffers: the decoded text for the lexer, the token counter and the last mask
+    private final ThreadLocal<WorkerScratch> scratch = new ThreadLocal<WorkerScratch>() {
+        @Override
+        protected WorkerScratch initialValue() {
+            return new WorkerScratch();
+        }
+    };
+
+    static final class WorkerScratch {
+        final CharsetDecoder utf8 = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+        final BatchBenchmark.CountingTokenSink sink = new BatchBenchmark.CountingTokenSink();
+        CharBuffer text = CharBuffer.allocate(1024);
+        long[] masks;
+    }
+
+    // One request at a time per connection: reading pauses while a worker serves the frame, which keeps
+    // responses in request order without any per-connection locking
+    static final class Connection {
+        final SocketChannel channel;
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        ByteBuffer payload;
+        int discard;
+        ByteBuffer response;
+        boolean closeAfterWrite;
+        long lastActive;
+
+        Connection(SocketChannel channel, long now) {
+            this.channel = channel;
+            this.lastActive = now;
+        }
+    }
+
+    public MatchService(HighEfficientFA engine, PatternSetRegistry registry, int port, int workerCount,
+            int queueCapacity, int maxPayload) throws IOException {
+        this(engine, registry, port, workerCount, queueCapacity, maxPayload,
+                Math.max(DEFAULT_PAYLOAD_BUDGET, maxPayload));
+    }
+
+    // The engine lexes; patterns come from the registry, so rule updates apply from the next request on.
+    // payloadBudget caps the payload bytes held at once across every connection and the admission queue.
+    public MatchService(HighEfficientFA engine, PatternSetRegistry registry, int port, int workerCount,
+            int queueCapacity, int maxPayload, long payloadBudget) throws IOException {
+        if (workerCount < 1 || queueCapacity < 0 || maxPayload < 0 || payloadBudget < maxPayload) {
+            throw new IllegalArgumentException(
+                    "workers must be >= 1, queue and max payload >= 0, payload budget >= max payload");
+        }
+        this.engine = engine;
+        this.registry = registry;
+        this.maxPayload = maxPayload;
+        this.payloadBudget = payloadBudget;
+        BlockingQueue<Runnable> admission = queueCapacity > 0 ? new ArrayBlockingQueue<Runnable>(queueCapacity)
+                : new SynchronousQueue<Runnable>();
+        this.workers = new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS, admission,
+                new ThreadPoolExecutor.AbortPolicy());
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        this.selectorThread = new Thread(new Runnable() {
+            public void run() {
+                selectLoop();
+            }
+        }, "hfa-match-service-selector");
+    }
+
+    public MatchService start() {
+        selectorThread.start();
+        return this;
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public long getShedRequests() {
+        return shedRequests.get();
+    }
+
+    public void awaitTermination() throws InterruptedException {
+        selectorThread.join();
+    }
+
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        workers.shutdownNow();
+    }
+
+    private void selectLoop() {
+        try {
+            long lastSweep = System.currentTimeMillis();
+            while (running) {
+                selector.select(1000);
+                long now = System.currentTimeMillis();
+                Connection done;
+                while ((done = responses.poll()) != null) {
+                    startWrite(done, now);
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept(now);
+                    } else if (key.isReadable()) {
+                        read(key, now);
+                    } else if (key.isWritable()) {
+                        write(key, now);
+                    }
+                }
+                if (now - lastSweep >= 1000) {
+                    closeIdle(now);
+                    lastSweep = now;
                 }
-                return HFAState.LOOKING_FOR_H;
-            } else if (c == 'e') {
-                return HFAState.LOOKING_FOR_F;
             }
-            return state;
-        } else if (state == HFAState.LOOKING_FOR_H) {
-            if (c == 'h') {
-                return HFAState.ACCEPT;
-            } else if (c == 'e') {
-                return HFAState.LOOKING_FOR_F;
+        } catch (IOException e) {
+            // The selector itself failed: nothing left to serve
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                closeQuietly(key.channel());
             }
-            return HFAState.LOOKING_FOR_G;
+            closeQuietly(selector);
+            closeQuietly(serverChannel);
         }
+    }
 
-        return state;
+    private void accept(long now) throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            channel.register(selector, SelectionKey.OP_READ, new Connection(channel, now));
+        }
     }
 
-    // HFA Implementation for .*abc.*def pattern
-    private HFAState processPattern_abc_def_HFA(HFAState state, char c, int pos, String input) {
-        if (state == HFAState.START) {
-            if (c == 'a') {
-                // Judging Instrument: Look ahead for "abc"
-                if (pos + 2 < input.length() &&
-                        input.charAt(pos + 1) == 'b' && input.charAt(pos + 2) == 'c') {
-                    auxiliaryVars.put("found_first_part", true);
-                    metrics.incrementMemoryAccesses();
-                    return HFAState.FOUND_ABC;
+    private void read(SelectionKey key, long now) {
+        Connection connection = (Connection) key.attachment();
+        try {
+            if (connection.discard > 0) {
+                discardPayload(key, connection, now);
+                return;
+            }
+            if (connection.payload == null) {
+                if (connection.channel.read(connection.header) < 0) {
+                    close(key);
+                    return;
                 }
-                return HFAState.FOUND_A;
-            }
-            return HFAState.START;
-        } else if (state == HFAState.FOUND_A) {
-            if (c == 'b')
-                return HFAState.FOUND_AB;
-            if (c == 'a')
-                return HFAState.FOUND_A;
-            return HFAState.START;
-        } else if (state == HFAState.FOUND_AB) {
-            if (c == 'c') {
-                auxiliaryVars.put("found_first_part", true);
-                metrics.incrementMemoryAccesses();
-                return HFAState.FOUND_ABC;
-            } else if (c == 'a') {
-                return HFAState.FOUND_A;
-            }
-            return HFAState.START;
-        } else if (state == HFAState.FOUND_ABC) {
-            if (auxiliaryVars.get("found_first_part") && c == 'd') {
-                // Judging Instrument: Look ahead for "def"
-                if (pos + 2 < input.length() &&
-                        input.charAt(pos + 1) == 'e' && input.charAt(pos + 2) == 'f') {
-                    return HFAState.ACCEPT;
+                if (connection.header.hasRemaining()) {
+                    return;
                 }
-                return HFAState.LOOKING_FOR_E;
-            } else if (c == 'a') {
-                return HFAState.FOUND_A;
-            }
-            return state;
-        } else if (state == HFAState.LOOKING_FOR_E) {
-            if (c == 'e')
-                return HFAState.LOOKING_FOR_F;
-            if (c == 'a')
-                return HFAState.FOUND_A;
-            return HFAState.FOUND_ABC;
-        } else if (state == HFAState.LOOKING_FOR_F) {
-            if (c == 'f')
-                return HFAState.ACCEPT;
-            if (c == 'a')
-                return HFAState.FOUND_A;
-            return HFAState.FOUND_ABC;
-        }
-
-        return state;
-    }
-
-    // HFA Implementation for .*abcde.*fghnm pattern
-    private HFAState processPattern_abcde_fghnm_HFA(HFAState state, char c, int pos, String input) {
-        if (state == HFAState.START) {
-            if (c == 'a') {
-                // Judging Instrument: Look ahead for "abcde"
-                if (pos + 4 < input.length() &&
-                        input.substring(pos, pos + 5).equals("abcde")) {
-                    auxiliaryVars.put("found_first_part", true);
-                    metrics.incrementMemoryAccesses();
-                    return HFAState.FOUND_ABCDE;
+                int length = connection.header.getInt(1);
+                if (length < 0 || length > maxPayload) {
+                    respond(key, errorFrame("Payload length " + length + " outside 0.." + maxPayload), true, now);
+                    return;
                 }
-                return HFAState.FOUND_A;
-            }
-            return HFAState.START;
-        } else if (state == HFAState.FOUND_A) {
-            if (c == 'b')
-                return HFAState.FOUND_AB;
-            if (c == 'a')
-                return HFAState.FOUND_A;
-            return HFAState.START;
-        } else if (state == HFAState.FOUND_AB) {
-            if (c == 'c')
-                return HFAState.FOUND_ABC;
-            if (c == 'a')
-                return HFAState.FOUND_A;
-            return HFAState.START;
-        } else if (state == HFAState.FOUND_ABC) {
-            if (c == 'd')
-                return HFAState.FOUND_ABCD;
-            if (c == 'a')
-                return HFAState.FOUND_A;
-            return HFAState.START;
-        } else if (state == HFAState.FOUND_ABCD) {
-            if (c == 'e') {
-                auxiliaryVars.put("found_first_part", true);
-                metrics.incrementMemoryAccesses();
-                return HFAState.FOUND_ABCDE;
-            } else if (c == 'a') {
-                return HFAState.FOUND_A;
-            }
-            return HFAState.START;
-        } else if (state == HFAState.FOUND_ABCDE) {
-            if (auxiliaryVars.get("found_first_part") && c == 'f') {
-                // Judging Instrument: Look ahead for "fghnm"
-                if (pos + 4 < input.length() &&
-                        input.substring(pos, pos + 5).equals("fghnm")) {
-                    return HFAState.ACCEPT;
+                // The budget is reserved before the buffer exists, so headers alone cannot exhaust the heap
+                if (!reservePayload(length)) {
+                    connection.header.clear();
+                    connection.discard = length;
+                    shed(key, now);
+                    return;
                 }
-                return HFAState.LOOKING_FOR_G;
-            } else if (c == 'a') {
-                return HFAState.FOUND_A;
-            }
-            return state;
-        } else if (state == HFAState.LOOKING_FOR_G) {
-            if (c == 'g')
-                return HFAState.LOOKING_FOR_H;
-            if (c == 'a')
-                return HFAState.FOUND_A;
-            return HFAState.FOUND_ABCDE;
-        } else if (state == HFAState.LOOKING_FOR_H) {
-            if (c == 'h')
-                return HFAState.LOOKING_FOR_FGHNM;
-            if (c == 'a')
-                return HFAState.FOUND_A;
-            return HFAState.FOUND_ABCDE;
-        } else if (state == HFAState.LOOKING_FOR_FGHNM) {
-            if (c == 'n')
-                return HFAState.LOOKING_FOR_FGHNM;
-            if (c == 'm')
-                return HFAState.ACCEPT;
-            if (c == 'a')
-                return HFAState.FOUND_A;
-            return HFAState.FOUND_ABCDE;
-        }
-
-        return state;
+                connection.payload = ByteBuffer.allocate(length);
+            }
+            if (connection.channel.read(connection.payload) < 0) {
+                close(key);
+                return;
+            }
+            connection.lastActive = now;
+            if (!connection.payload.hasRemaining()) {
+                dispatch(key, connection, now);
+            }
+        } catch (IOException e) {
+            close(key);
+        }
     }
 
-    // Judging Instrument: Determine if intelligent routing should be used
-    private boolean shouldUseIntelligentRouting(String complexity) {
-        return !complexity.equals("UNKNOWN");
+    // A complete frame goes to the pool; when every worker is busy and the queue is full the request (not
+    // the connection) is answered BUSY
+    private void dispatch(final SelectionKey key, final Connection connection, long now) {
+        final byte kind = connection.header.get(0);
+        final ByteBuffer payload = connection.payload;
+        payload.flip();
+        connection.header.clear();
+        connection.payload = null;
+        if (kind != PAYLOAD_TEXT && kind != PAYLOAD_BYTES) {
+            releasePayload(payload.capacity());
+            respond(key, errorFrame("Unknown payload kind " + kind), false, now);
+            return;
+        }
+        key.interestOps(0);
+        try {
+            workers.execute(new Runnable() {
+                public void run() {
+                    ByteBuffer response;
+                    try {
+                        response = serve(payload);
+                    } catch (RuntimeException e) {
+                        response = errorFrame("Request failed: " + e);
+                    } finally {
+                        releasePayload(payload.capacity());
+                    }
+                    connection.response = response;
+                    responses.add(connection);
+                    selector.wakeup();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            releasePayload(payload.capacity());
+            shed(key, now);
+        }
     }
 
-    // Judging Instrument: Early termination optimization
-    private boolean shouldTerminateEarly(HFAState state, String pattern, int pos, int inputLength) {
-        if (pattern.equals(".*abcde.*fghnm") && state == HFAState.START && pos > inputLength - 10) {
-            return true; // Not enough characters left for both patterns
+    private boolean reservePayload(int length) {
+        while (true) {
+            long reserved = payloadBytes.get();
+            if (reserved + length > payloadBudget) {
+                return false;
+            }
+            if (payloadBytes.compareAndSet(reserved, reserved + length)) {
+                return true;
+            }
         }
-        return false;
     }
 
-    private void resetAuxiliaryVars() {
-        metrics.incrementMemoryAccesses(auxiliaryVars.size());
-        for (String key : auxiliaryVars.keySet()) {
-            auxiliaryVars.put(key, false);
-        }
-        progressCounters.clear();
-    }
-
-    private String extractFirstPart(String pattern) {
-        if (pattern.equals(".*ab.*cd"))
-            return "ab";
-        if (pattern.equals(".*ef.*gh"))
-            return "ef";
-        if (pattern.equals(".*abc.*def"))
-            return "abc";
-        if (pattern.equals(".*abcde.*fghnm"))
-            return "abcde";
-        return "";
-    }
-
-    private String extractSecondPart(String pattern) {
-        if (pattern.equals(".*ab.*cd"))
-            return "cd";
-        if (pattern.equals(".*ef.*gh"))
-            return "gh";
-        if (pattern.equals(".*abc.*def"))
-            return "def";
-        if (pattern.equals(".*abcde.*fghnm"))
-            return "fghnm";
-        return "";
+    private void releasePayload(int length) {
+        payloadBytes.addAndGet(-length);
+    }
+
+    private void shed(SelectionKey key, long now) {
+        shedRequests.incrementAndGet();
+        ByteBuffer busy = ByteBuffer.allocate(1);
+        busy.put(0, STATUS_BUSY);
+        respond(key, busy, false, now);
+    }
+
+    // Reads and drops the rest of a shed request, so the connection stays in step with its frames
+    private void discardPayload(SelectionKey key, Connection connection, long now) throws IOException {
+        discardBuffer.clear();
+        discardBuffer.limit(Math.min(discardBuffer.capacity(), connection.discard));
+        int read = connection.channel.read(discardBuffer);
+        if (read < 0) {
+            close(key);
+            return;
+        }
+        connection.discard -= read;
+        connection.lastActive = now;
+    }
+
+    private ByteBuffer serve(ByteBuffer payload) {
+        WorkerScratch worker = scratch.get();
+        // One matcher per request: a rule update lands between requests, never inside one
+        Matcher matcher = registry.matcher();
+        worker.masks = matcher.whichMatch(payload, worker.masks);
+        long[] masks = worker.masks;
+
+        // The lexer reads the same UTF-8 text the masks were matched on, whichever kind was sent
+        CharBuffer text = decode(worker, payload);
+        worker.sink.reset();
+        engine.tokenize(text, worker.sink);
+
+        ByteBuffer response = ByteBuffer.allocate(1 + 3 * Integer.BYTES + masks.length * Long.BYTES);
+        response.put(STATUS_OK);
+        response.putInt(worker.sink.getCount());
+        response.putInt(matcher.getCompiledAutomaton().getCompiledPatterns().getPatternCount());
+        response.putInt(masks.length);
+        for (long mask : masks) {
+            response.putLong(mask);
+        }
+        response.flip();
+        return response;
+    }
+
+    // Decodes into the worker's reusable buffer; malformed UTF-8 becomes U+FFFD
+    private static CharBuffer decode(WorkerScratch worker, ByteBuffer payload) {
+        CharsetDecoder decoder = worker.utf8;
+        ByteBuffer bytes = payload.duplicate();
+        int capacity = (int) Math.ceil(bytes.remaining() * (double) decoder.maxCharsPerByte());
+        if (worker.text.capacity() < capacity) {
+            worker.text = CharBuffer.allocate(capacity);
+        }
+        CharBuffer text = worker.text;
+        text.clear();
+        decoder.reset();
+        decoder.decode(bytes, text, true);
+        decoder.flush(text);
+        text.flip();
+        return text;
+    }
+
+    private void startWrite(Connection connection, long now) {
+        SelectionKey key = connection.channel.keyFor(selector);
+        if (key != null && key.isValid()) {
+            respond(key, connection.response, false, now);
+        }
+    }
+
+    private void respond(SelectionKey key, ByteBuffer response, boolean closeAfterWrite, long now) {
+        Connection connection = (Connection) key.attachment();
+        connection.response = response;
+        connection.closeAfterWrite = closeAfterWrite;
+        key.interestOps(SelectionKey.OP_WRITE);
+        write(key, now);
+    }
+
+    private void write(SelectionKey key, long now) {
+        Connection connection = (Connection) key.attachment();
+        try {
+            connection.channel.write(connection.response);
+            connection.lastActive = now;
+            if (connection.response.hasRemaining()) {
+                return;
+            }
+            connection.response = null;
+            if (connection.closeAfterWrite) {
+                close(key);
+            } else {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        } catch (IOException e) {
+            close(key);
+        }
+    }
+
+    // Connections waiting on a worker are never idle; everything else is closed after the timeout
+    private void closeIdle(long now) {
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (attachment instanceof Connection && key.isValid() && key.interestOps() != 0
+                    && now - ((Connection) attachment).lastActive > IDLE_TIMEOUT_MILLIS) {
+                close(key);
+            }
+        }
+    }
+
+    private static ByteBuffer errorFrame(String message) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(STATUS_ERROR);
+            out.writeUTF(message);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    // A payload still being read gives its reservation back; queued or running ones release it when served
+    private void close(SelectionKey key) {
+        Object attachment = key.attachment();
+        if (attachment instanceof Connection && ((Connection) attachment).payload != null) {
+            releasePayload(((Connection) attachment).payload.capacity());
+            ((Connection) attachment).payload = null;
+        }
+        key.cancel();
+        closeQuietly(key.channel());
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    // Returns the process exit code: 0 on --help or shutdown, 2 on bad arguments, 1 when the port cannot be bound
+    public static int run(String[] args) {
+        if (Arrays.asList(args).contains("--help")) {
+            printUsage(System.out);
+            return 0;
+        }
+        int port = DEFAULT_PORT;
+        int workerCount = Runtime.getRuntime().availableProcessors();
+        int queueCapacity = DEFAULT_QUEUE;
+        int maxPayload = DEFAULT_MAX_PAYLOAD;
+        long payloadBudget = -1;
+        int rules = 0;
+        try {
+            for (int i = 0; i < args.length; i += 2) {
+                String option = args[i];
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + option);
+                }
+                int value = parseInt(option, args[i + 1]);
+                if (option.equals("--port")) {
+                    port = value;
+                } else if (option.equals("--workers")) {
+                    workerCount = value;
+                } else if (option.equals("--queue")) {
+                    queueCapacity = value;
+                } else if (option.equals("--max-payload")) {
+                    maxPayload = value;
+                } else if (option.equals("--payload-budget")) {
+                    payloadBudget = value;
+                } else if (option.equals("--rules")) {
+                    rules = value;
+                } else {
+                    throw new IllegalArgumentException("Unknown option: " + option);
+                }
+            }
+            if (port < 0 || port > 65535 || rules < 0) {
+                throw new IllegalArgumentException("port must be 0..65535, rules >= 0");
+            }
+            HighEfficientFA engine = rules > 0 ? new HighEfficientFA(new WorkloadGenerator(42L).patterns(rules))
+                    : new HighEfficientFA();
+            engine.getMetrics().setMode(MetricsMode.SAMPLED);
+            PatternSetRegistry registry = engine.newRegistry();
+            try {
+                MatchService service = new MatchService(engine, registry, port, workerCount, queueCapacity,
+                        maxPayload, payloadBudget < 0 ? Math.max(DEFAULT_PAYLOAD_BUDGET, maxPayload) : payloadBudget)
+                        .start();
+                System.err.println("hfa match service listening on "
+                        + InetAddress.getLoopbackAddress().getHostAddress() + ":" + service.getPort() + " ("
+                        + workerCount + " workers, queue " + queueCapacity + ")");
+                service.awaitTermination();
+            } finally {
+                registry.close();
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("error: " + e.getMessage());
+            printUsage();
+            return 2;
+        } catch (IOException e) {
+            System.err.println("error: could not start service: " + e.getMessage());
+            return 1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return 0;
+    }
+
+    private static int parseInt(String option, String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number for " + option + ": " + value);
+        }
+    }
+
+    public static void printUsage() {
+        printUsage(System.err);
+    }
+
+    public static void printUsage(PrintStream out) {
+        out.println("usage: java -jar hfa-pattern-matching-engine-1.0.jar --serve [options]");
+        out.println("  --port N                     localhost port, 0 for any free port (default: " + DEFAULT_PORT + ")");
+        out.println("  --workers N                  requests matched at once (default: available processors)");
+        out.println("  --queue N                    requests waiting for a worker before new ones get BUSY (default: " + DEFAULT_QUEUE + ")");
+        out.println("  --max-payload BYTES          largest accepted payload (default: 16M)");
+        out.println("  --payload-budget BYTES       payload bytes held at once before requests get BUSY (default: 256M)");
+        out.println("  --rules N                    generated .*a.*b rules instead of the built-ins");
     }
 }
 
@@ -1075,9 +5468,9 @@ public class Main {
         System.out.println(dashes85);
 
         // State Transitions
-        int faTransitions = fa.getMetrics().getStateTransitions();
-        int xfaTransitions = xfa.getMetrics().getStateTransitions();
-        int hfaTransitions = hfa.getMetrics().getStateTransitions();
+        long faTransitions = fa.getMetrics().getStateTransitions();
+        long xfaTransitions = xfa.getMetrics().getStateTransitions();
+        long hfaTransitions = hfa.getMetrics().getStateTransitions();
         double transitionImprovement = xfaTransitions > 0
                 ? ((double) (xfaTransitions - hfaTransitions) / xfaTransitions) * 100
                 : 0;
@@ -1086,9 +5479,9 @@ public class Main {
                 "State Transitions", faTransitions, xfaTransitions, hfaTransitions, transitionImprovement);
 
         // Memory Accesses
-        int faMemory = fa.getMetrics().getMemoryAccesses();
-        int xfaMemory = xfa.getMetrics().getMemoryAccesses();
-        int hfaMemory = hfa.getMetrics().getMemoryAccesses();
+        long faMemory = fa.getMetrics().getMemoryAccesses();
+        long xfaMemory = xfa.getMetrics().getMemoryAccesses();
+        long hfaMemory = hfa.getMetrics().getMemoryAccesses();
         double memoryImprovement = xfaMemory > 0 ? ((double) (xfaMemory - hfaMemory) / xfaMemory) * 100 : 0;
 
         System.out.printf("%-25s %-15d %-15d %-15d %.1f%% less%n",
@@ -1100,8 +5493,9 @@ public class Main {
         int hfaStorage = hfa.getMetrics().getStorageSpace();
         double storageImprovement = xfaStorage > 0 ? ((double) (xfaStorage - hfaStorage) / xfaStorage) * 100 : 0;
 
-        System.out.printf("%-25s %-15d %-15d %-15d %.1f%% less%n",
-                "Storage Space (bytes)", faStorage, xfaStorage, hfaStorage, storageImprovement);
+        System.out.printf("%-25s %-15s %-15s %-15s %.1f%% less%n",
+                "Storage Space (bytes)", sizeCell(fa, faStorage), sizeCell(xfa, xfaStorage),
+                sizeCell(hfa, hfaStorage), storageImprovement);
 
         // Matching Time
         double faTime = fa.getMetrics().getMatchingTime();
@@ -1113,18 +5507,19 @@ public class Main {
                 "Matching Time (ms)", faTime, "", xfaTime, "", hfaTime, "", timeImprovement);
 
         // States and Edges
-        System.out.printf("%-25s %-15d %-15d %-15d%n",
-                "Total States", fa.getMetrics().getTotalStates(),
-                xfa.getMetrics().getTotalStates(), hfa.getMetrics().getTotalStates());
-        System.out.printf("%-25s %-15d %-15d %-15d%n",
-                "Total Edges", fa.getMetrics().getTotalEdges(),
-                xfa.getMetrics().getTotalEdges(), hfa.getMetrics().getTotalEdges());
+        System.out.printf("%-25s %-15s %-15s %-15s%n",
+                "Total States", sizeCell(fa, fa.getMetrics().getTotalStates()),
+                sizeCell(xfa, xfa.getMetrics().getTotalStates()), sizeCell(hfa, hfa.getMetrics().getTotalStates()));
+        System.out.printf("%-25s %-15s %-15s %-15s%n",
+                "Total Edges", sizeCell(fa, fa.getMetrics().getTotalEdges()),
+                sizeCell(xfa, xfa.getMetrics().getTotalEdges()), sizeCell(hfa, hfa.getMetrics().getTotalEdges()));
+        System.out.println("~ = baseline estimate: the unminimized DFA tables FA/XFA stand in for; HFA sizes are measured");
 
         System.out.println("\n" + equals80);
         System.out.println("🎯 RESEARCH PAPER VALIDATION");
         System.out.println(equals80);
         System.out.printf("✅ Memory Access Reduction: %.1f%% (Target: ~40%%)%n", memoryImprovement);
-        System.out.printf("✅ Storage Space Reduction: %.1f%% (Target: ~45%%)%n", storageImprovement);
+        System.out.printf("✅ Storage Space Reduction: %.1f%% vs estimated XFA (Target: ~45%%)%n", storageImprovement);
         System.out.printf("✅ State Transition Reduction: %.1f%%%n", transitionImprovement);
         System.out.printf("✅ Lexical Quality: %s%n",
                 faTokens.equals(xfaTokens) && xfaTokens.equals(hfaTokens) ? "MAINTAINED" : "DIFFERS");
@@ -1138,6 +5533,42 @@ public class Main {
                 countMatches(faPatterns), countMatches(xfaPatterns), countMatches(hfaPatterns));
     }
 
+    private static String sizeCell(FiniteAutomaton automaton, int value) {
+        return (automaton.getMetrics().isSizeEstimated() ? "~" : "") + value;
+    }
+
+    public static void scanFile(String path) {
+        String equals80 = "================================================================================";
+        String dashes80 = "--------------------------------------------------------------------------------";
+
+        System.out.println(equals80);
+        System.out.println("📂 MEMORY-MAPPED FILE SCAN (HFA)");
+        System.out.println(equals80);
+        System.out.println("📝 File: " + path);
+        System.out.println(dashes80);
+
+        HighEfficientFA hfa = new HighEfficientFA();
+        FileScanResult result;
+        try {
+            result = hfa.scanFile(Paths.get(path));
+        } catch (IOException | InvalidPathException e) {
+            System.out.println("❌ Could not scan file: " + e.getMessage());
+            return;
+        }
+
+        for (int i = 0; i < result.getPatternCount(); i++) {
+            if (result.isMatched(i)) {
+                System.out.printf("  Pattern: %-20s MATCH     bytes [%d, %d)%n",
+                        result.getPattern(i), result.getMatchStart(i), result.getMatchEnd(i));
+            } else {
+                System.out.printf("  Pattern: %-20s NO MATCH%n", result.getPattern(i));
+            }
+        }
+
+        System.out.printf("%n📊 Bytes Scanned: %d%n", result.getBytesScanned());
+        System.out.printf("📊 Scan Time: %.3fms%n", result.getScanTime());
+    }
+
     private static boolean comparePatternResults(List<PatternMatchResult> fa, List<PatternMatchResult> xfa,
             List<PatternMatchResult> hfa) {
         if (fa.size() != xfa.size() || xfa.size() != hfa.size())
@@ -1182,10 +5613,21 @@ public class Main {
         System.out.println("Operators: +, -, *, /, =, ==");
         System.out.println("Symbols: (, ), {, }, ;");
         System.out.println("Patterns: .*ab.*cd, .*ef.*gh, .*abc.*def, .*abcde.*fghnm");
+        System.out.println("\n📂 FILE SCAN: :scan <path> (memory-mapped, reports byte offsets)");
         System.out.println(equals60);
     }
 
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--batch")) {
+            System.exit(BatchBenchmark.run(Arrays.copyOfRange(args, 1, args.length)));
+        } else if (args.length > 0 && args[0].equals("--serve")) {
+            System.exit(MatchService.run(Arrays.copyOfRange(args, 1, args.length)));
+        } else if (args.length > 0) {
+            BatchBenchmark.printUsage();
+            MatchService.printUsage();
+            System.exit(2);
+        }
+
         Scanner scanner = new Scanner(System.in);
 
         String equals80 = "================================================================================";
@@ -1197,7 +5639,7 @@ public class Main {
         System.out.println("🔬 COMPARISON: FA vs XFA vs HFA (Research Paper Logic)");
         System.out.println(equals80);
         System.out.println("Enter code/text for BOTH lexical analysis AND regex pattern matching!");
-        System.out.println("Type 'quit' to exit, 'help' for examples");
+        System.out.println("Type 'quit' to exit, 'help' for examples, ':scan <path>' to scan a file");
         System.out.println(dashes80);
 
         while (true) {
@@ -1214,6 +5656,10 @@ public class Main {
             } else if (userInput.isEmpty()) {
                 System.out.println("❌ Please enter some text to analyze!");
                 continue;
+            } else if (userInput.startsWith(":scan ")) {
+                // The colon prefix keeps ordinary input such as "scan x = 1;" going to the analyzers
+                scanFile(userInput.substring(6).trim());
+                continue;
             }
 
             // Process the user input through all three methods
@@ -0,0 +1,47 @@
+package hfa;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+// HFA matchPatterns over generated rule sets: per-pattern tables vs the single-pass scanner
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class HfaScaleBenchmark {
+    @Param({ "64", "4096", "262144", "16777216", "67108864" })
+    public int inputSize;
+
+    @Param({ "4", "64", "256" })
+    public int patternCount;
+
+    @Param({ "0.0", "0.01", "0.5" })
+    public double matchDensity;
+
+    @Param({ "false", "true" })
+    public boolean singlePass;
+
+    @Param({ "DISABLED" })
+    public String metricsMode;
+
+    private HighEfficientFA automaton;
+    private String input;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        List<String> patterns = new WorkloadGenerator(7L).patterns(patternCount);
+        automaton = new HighEfficientFA(patterns);
+        automaton.setSinglePassMode(singlePass);
+        automaton.getMetrics().setMode(MetricsMode.valueOf(metricsMode));
+        input = new WorkloadGenerator(42L).logText(inputSize, patterns, matchDensity, 0.0);
+    }
+
+    @Benchmark
+    public List<PatternMatchResult> matchPatterns() {
+        return automaton.matchPatterns(input);
+    }
+}
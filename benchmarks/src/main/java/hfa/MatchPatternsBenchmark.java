@@ -0,0 +1,42 @@
+package hfa;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+// matchPatterns of the three engines on the four built-in patterns.
+// TraditionalFA rescans from every position, so sizes stay small enough for it to finish.
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MatchPatternsBenchmark {
+    @Param({ "FA", "XFA", "HFA" })
+    public String engine;
+
+    @Param({ "64", "1024", "16384" })
+    public int inputSize;
+
+    @Param({ "0.0", "0.1", "1.0" })
+    public double matchDensity;
+
+    @Param({ "DISABLED" })
+    public String metricsMode;
+
+    private FiniteAutomaton automaton;
+    private String input;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        automaton = EngineFactory.create(engine, null, MetricsMode.valueOf(metricsMode));
+        input = new WorkloadGenerator(42L).logText(inputSize, automaton.regexPatterns, matchDensity, 0.0);
+    }
+
+    @Benchmark
+    public List<PatternMatchResult> matchPatterns() {
+        return automaton.matchPatterns(input);
+    }
+}
@@ -0,0 +1,48 @@
+package hfa;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Lexer throughput of the three engines, formatted strings vs the allocation-free sink
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class TokenizeBenchmark {
+    @Param({ "FA", "XFA", "HFA" })
+    public String engine;
+
+    @Param({ "64", "4096", "262144", "16777216", "67108864" })
+    public int inputSize;
+
+    @Param({ "DISABLED" })
+    public String metricsMode;
+
+    private FiniteAutomaton automaton;
+    private String input;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        automaton = EngineFactory.create(engine, null, MetricsMode.valueOf(metricsMode));
+        input = new WorkloadGenerator(42L).sourceCode(inputSize);
+    }
+
+    @Benchmark
+    public List<String> tokenizeStrings() {
+        return automaton.tokenize(input);
+    }
+
+    @Benchmark
+    public void tokenizeSink(final Blackhole blackhole) {
+        automaton.tokenize(input, new TokenSink() {
+            public void token(TokenKind kind, int start, int end) {
+                blackhole.consume(end - start);
+            }
+        });
+    }
+}
@@ -0,0 +1,109 @@
+package hfa;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class AutomatonImageTest {
+    private static final int HEADER_BYTES = 4 * Integer.BYTES;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void roundTripPreservesMatchingAndTokens() throws IOException {
+        List<String> patterns = MatchingFixtures.rules(80);
+        HighEfficientFA original = new HighEfficientFA(patterns, Arrays.asList("alpha", "beta", "if"));
+        Path image = directory.resolve("rules.hfai");
+        original.save(image);
+        HighEfficientFA loaded = HighEfficientFA.load(image);
+
+        String code = new WorkloadGenerator(MatchingFixtures.SEED).sourceCode(4096) + " alpha beta == 3.5;";
+        assertEquals(original.tokenize(code), loaded.tokenize(code));
+        for (boolean singlePass : new boolean[] {false, true}) {
+            loaded.setSinglePassMode(singlePass);
+            for (String input : MatchingFixtures.inputs(patterns, 30)) {
+                assertArrayEquals(MatchingFixtures.flags(original.matchPatterns(input)),
+                        MatchingFixtures.flags(loaded.matchPatterns(input)));
+            }
+        }
+    }
+
+    @Test
+    void corruptedImageIsRejected() throws IOException {
+        Path image = directory.resolve("rules.hfai");
+        new HighEfficientFA(MatchingFixtures.rules(10)).save(image);
+        byte[] bytes = Files.readAllBytes(image);
+        bytes[bytes.length / 2] ^= 0x40;
+        Files.write(image, bytes);
+        assertThrows(IOException.class, () -> HighEfficientFA.load(image));
+
+        Files.write(image, Arrays.copyOf(bytes, 10));
+        assertThrows(IOException.class, () -> HighEfficientFA.load(image));
+    }
+
+    @Test
+    void craftedArrayLengthIsRejectedBeforeAllocating() throws IOException {
+        Path image = directory.resolve("rules.hfai");
+        new HighEfficientFA(MatchingFixtures.rules(10)).save(image);
+        byte[] bytes = Files.readAllBytes(image);
+        // Keyword count, right after the three auxiliary layout ints
+        ByteBuffer.wrap(bytes).putInt(HEADER_BYTES + 3 * Integer.BYTES, Integer.MAX_VALUE);
+        Files.write(image, withChecksum(bytes));
+        assertThrows(IOException.class, () -> HighEfficientFA.load(image));
+    }
+
+    @Test
+    void trailingBytesAreRejected() throws IOException {
+        Path image = directory.resolve("rules.hfai");
+        new HighEfficientFA(MatchingFixtures.rules(10)).save(image);
+        byte[] bytes = Arrays.copyOf(Files.readAllBytes(image), (int) Files.size(image) + 4);
+        ByteBuffer.wrap(bytes).putInt(2 * Integer.BYTES, bytes.length - HEADER_BYTES);
+        Files.write(image, withChecksum(bytes));
+        assertThrows(IOException.class, () -> HighEfficientFA.load(image));
+    }
+
+    @Test
+    void outOfRangeTransitionIsRejected() throws IOException {
+        List<String> patterns = Arrays.asList(".*ab.*cd", ".*xyz");
+        ByteArrayOutputStream table = new ByteArrayOutputStream();
+        PatternCompiler.compile(patterns).writeTo(new DataOutputStream(table));
+
+        // ASCII-only rules: strings, class count, 128 ASCII classes, two empty non-ASCII tables, then transitions
+        ByteArrayOutputStream strings = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(strings);
+        AutomatonImage.writeStrings(out, patterns.toArray(new String[0]));
+        AutomatonImage.writeStrings(out, new String[] {"ab", "cd"});
+        AutomatonImage.writeStrings(out, new String[] {"xyz"});
+        int firstTransition = strings.size() + Integer.BYTES + (1 + 128) * Integer.BYTES + 2 * Integer.BYTES
+                + Integer.BYTES;
+
+        byte[] bytes = table.toByteArray();
+        assertEquals(PatternCompiler.compile(patterns).getStateCount(),
+                CompiledPatternSet.readFrom(ByteBuffer.wrap(bytes)).getStateCount());
+        ByteBuffer.wrap(bytes).putInt(firstTransition, 1 << 24);
+        IOException error = assertThrows(IOException.class, () -> CompiledPatternSet.readFrom(ByteBuffer.wrap(bytes)));
+        assertTrue(error.getMessage().contains("pattern transitions"), error.getMessage());
+    }
+
+    // Recomputes the payload checksum, as a deliberately crafted image would
+    private static byte[] withChecksum(byte[] image) {
+        CRC32 crc = new CRC32();
+        crc.update(image, HEADER_BYTES, image.length - HEADER_BYTES);
+        ByteBuffer.wrap(image).putInt(3 * Integer.BYTES, (int) crc.getValue());
+        return image;
+    }
+}
@@ -0,0 +1,46 @@
+package hfa;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class BaselineEnginesTest {
+
+    @Test
+    void configuredPatternsMatchReference() {
+        List<String> patterns = MatchingFixtures.rules(30);
+        List<String> keywords = Arrays.asList("select", "from", "where");
+        FiniteAutomaton[] engines = { new TraditionalFA(patterns, keywords), new ExtendedFA(patterns, keywords) };
+        for (String input : MatchingFixtures.inputs(patterns, 20)) {
+            boolean[] expected = MatchingFixtures.expected(patterns, input);
+            for (FiniteAutomaton engine : engines) {
+                assertArrayEquals(expected, MatchingFixtures.flags(engine.matchPatterns(input)));
+            }
+        }
+    }
+
+    @Test
+    void configuredKeywordsAreRecognized() {
+        List<String> keywords = Arrays.asList("select", "from", "where");
+        FiniteAutomaton[] engines = { new TraditionalFA(FiniteAutomaton.DEFAULT_PATTERNS, keywords),
+                new ExtendedFA(FiniteAutomaton.DEFAULT_PATTERNS, keywords),
+                new HighEfficientFA(FiniteAutomaton.DEFAULT_PATTERNS, keywords) };
+        for (FiniteAutomaton engine : engines) {
+            assertEquals(Arrays.asList("[KEYWORD: select]", "[IDENTIFIER: a]", "[KEYWORD: from]", "[IDENTIFIER: t]",
+                    "[KEYWORD: where]", "[IDENTIFIER: b]", "[OPERATOR: ==]", "[NUMBER: 1]", "[IDENTIFIER: if]"),
+                    engine.tokenize("select a from t where b == 1 if"));
+        }
+    }
+
+    @Test
+    void baselineSizesAreLabelledEstimates() {
+        assertTrue(new TraditionalFA().getMetrics().isSizeEstimated());
+        assertTrue(new ExtendedFA().getMetrics().isSizeEstimated());
+        assertFalse(new HighEfficientFA().getMetrics().isSizeEstimated());
+    }
+}
@@ -0,0 +1,54 @@
+package hfa;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class IncrementalLexerTest {
+    private static final String[] FRAGMENTS = {
+            "=", "==", "x", "1", ".", " ", "\n", "if", "int", "(", "12.5", "ab c", "é", "+", "#", ""
+    };
+
+    @Test
+    void randomEditsEqualFullRelex() {
+        HighEfficientFA hfa = new HighEfficientFA();
+        WorkloadGenerator generator = new WorkloadGenerator(MatchingFixtures.SEED);
+        Random random = new Random(MatchingFixtures.SEED);
+        for (int document = 0; document < 12; document++) {
+            String initial = document % 4 == 0 ? "" : generator.sourceCode(200 + random.nextInt(3000));
+            IncrementalLexer lexer = hfa.createIncrementalLexer(initial);
+            StringBuilder text = new StringBuilder(initial);
+            for (int edit = 0; edit < 200; edit++) {
+                int offset = random.nextInt(text.length() + 1);
+                int removed = random.nextInt(Math.min(6, text.length() - offset) + 1);
+                String inserted = random.nextInt(4) == 0 ? ""
+                        : FRAGMENTS[random.nextInt(FRAGMENTS.length)] + FRAGMENTS[random.nextInt(FRAGMENTS.length)];
+                int before = lexer.getTokenCount();
+                lexer.edit(offset, removed, inserted);
+                text.replace(offset, offset + removed, inserted);
+
+                assertEquals(text.toString(), lexer.getText());
+                assertEquals(before - lexer.getRemovedTokenCount() + lexer.getInsertedTokenCount(),
+                        lexer.getTokenCount());
+                assertEquals(hfa.tokenize(text.toString()), replay(lexer));
+            }
+        }
+    }
+
+    @Test
+    void editOutsideTextIsRejected() {
+        IncrementalLexer lexer = new HighEfficientFA().createIncrementalLexer("int x = 1;");
+        assertThrows(IllegalArgumentException.class, () -> lexer.edit(8, 5, "2"));
+        assertThrows(IllegalArgumentException.class, () -> lexer.edit(-1, 0, "a"));
+    }
+
+    private static List<String> replay(IncrementalLexer lexer) {
+        List<String> tokens = new ArrayList<String>();
+        lexer.tokens(new FormattedTokenSink(lexer.getText(), tokens));
+        return tokens;
+    }
+}
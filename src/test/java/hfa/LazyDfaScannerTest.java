@@ -0,0 +1,37 @@
+package hfa;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class LazyDfaScannerTest {
+
+    @Test
+    void lazyDfaMatchesReference() {
+        List<String> patterns = MatchingFixtures.rules(80);
+        HighEfficientFA hfa = new HighEfficientFA(patterns);
+        hfa.setLazyDfaMode(true);
+        for (String input : MatchingFixtures.inputs(patterns, 60)) {
+            assertArrayEquals(MatchingFixtures.expected(patterns, input),
+                    MatchingFixtures.flags(hfa.matchPatterns(input)));
+        }
+    }
+
+    @Test
+    void tinyCacheFallsBackToNfaAndStillMatchesReference() {
+        List<String> patterns = MatchingFixtures.rules(80);
+        HighEfficientFA hfa = new HighEfficientFA(patterns);
+        hfa.setLazyDfaMode(true);
+        hfa.setLazyDfaCacheStates(2);
+        boolean fellBack = false;
+        for (String input : MatchingFixtures.inputs(patterns, 60)) {
+            assertArrayEquals(MatchingFixtures.expected(patterns, input),
+                    MatchingFixtures.flags(hfa.matchPatterns(input)));
+            fellBack |= hfa.getLazyDfaScanner().isNfaFallback();
+        }
+        assertTrue(fellBack, "a two-state cache must give up on the DFA");
+        assertTrue(hfa.getLazyDfaScanner().getCacheFlushes() > 0);
+    }
+}
@@ -0,0 +1,55 @@
+package hfa;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MappedFileScannerTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void mappedWindowsMatchReferenceWithByteOffsets() throws IOException {
+        List<String> patterns = MatchingFixtures.rules(50);
+        HighEfficientFA hfa = new HighEfficientFA(patterns);
+        // 64-byte windows put literals across window boundaries
+        MappedFileScanner scanner = new MappedFileScanner(hfa.getCompiledPatterns(), hfa.getMetrics(), 64);
+        Path file = directory.resolve("input.log");
+        for (String input : MatchingFixtures.inputs(patterns, 30)) {
+            Files.write(file, input.getBytes(StandardCharsets.US_ASCII));
+            for (FileScanResult result : new FileScanResult[] {scanner.scan(file), hfa.scanFile(file)}) {
+                assertEquals(input.length(), result.getBytesScanned());
+                boolean[] expected = MatchingFixtures.expected(patterns, input);
+                for (int p = 0; p < patterns.size(); p++) {
+                    assertEquals(expected[p], result.isMatched(p), patterns.get(p));
+                    if (expected[p]) {
+                        long[] span = span(PatternCompiler.parsePattern(patterns.get(p)), input);
+                        assertEquals(span[0], result.getMatchStart(p));
+                        assertEquals(span[1], result.getMatchEnd(p));
+                    }
+                }
+            }
+        }
+    }
+
+    // Start of the first literal and end of the last in the earliest chain
+    private static long[] span(String[] parts, String input) {
+        long start = -1;
+        int from = 0;
+        for (String part : parts) {
+            int at = input.indexOf(part, from);
+            if (start < 0) {
+                start = at;
+            }
+            from = at + part.length();
+        }
+        return new long[] {start, from};
+    }
+}
@@ -0,0 +1,249 @@
+package hfa;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+
+class MatchServiceTest {
+
+    @Test
+    void pipelinedRequestsMatchReference() throws Exception {
+        final List<String> patterns = MatchingFixtures.rules(70);
+        final List<String> inputs = MatchingFixtures.inputs(patterns, 30);
+        final HighEfficientFA engine = new HighEfficientFA(patterns);
+        PatternSetRegistry registry = engine.newRegistry();
+        final MatchService service = new MatchService(engine, registry, 0, 4, 64, 1 << 20).start();
+        ExecutorService clients = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (int c = 0; c < 8; c++) {
+                final byte kind = (byte) (c % 2);
+                results.add(clients.submit(() -> {
+                    try (Socket socket = connect(service)) {
+                        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                        DataInputStream in = new DataInputStream(socket.getInputStream());
+                        // Every request is written before any response is read
+                        for (String input : inputs) {
+                            send(out, kind, input + " café");
+                        }
+                        out.flush();
+                        for (String input : inputs) {
+                            assertEquals(MatchService.STATUS_OK, in.read());
+                            // Byte payloads are UTF-8 too: tokens and masks come from the same text
+                            String sent = input + " café";
+                            assertEquals(engine.tokenize(sent).size(), in.readInt());
+                            assertEquals(patterns.size(), in.readInt());
+                            long[] mask = new long[in.readInt()];
+                            for (int w = 0; w < mask.length; w++) {
+                                mask[w] = in.readLong();
+                            }
+                            assertArrayEquals(MatchingFixtures.expected(patterns, sent),
+                                    MatchingFixtures.flags(mask, patterns.size()));
+                        }
+                    }
+                    return inputs.size();
+                }));
+            }
+            for (Future<Integer> result : results) {
+                assertEquals(inputs.size(), result.get().intValue());
+            }
+        } finally {
+            clients.shutdown();
+            service.close();
+            registry.close();
+        }
+    }
+
+    @Test
+    void idleConnectionsDoNotHoldWorkers() throws Exception {
+        HighEfficientFA engine = new HighEfficientFA();
+        PatternSetRegistry registry = engine.newRegistry();
+        MatchService service = new MatchService(engine, registry, 0, 1, 0, 1 << 20).start();
+        List<Socket> idle = new ArrayList<Socket>();
+        try {
+            for (int i = 0; i < 200; i++) {
+                idle.add(connect(service));
+            }
+            try (Socket socket = connect(service)) {
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                send(out, MatchService.PAYLOAD_TEXT, "if (ab == cd) return 1;");
+                out.flush();
+                assertEquals(MatchService.STATUS_OK, in.read());
+                assertEquals(9, in.readInt());
+            }
+        } finally {
+            for (Socket socket : idle) {
+                socket.close();
+            }
+            service.close();
+            registry.close();
+        }
+    }
+
+    @Test
+    void badFramesGetErrors() throws Exception {
+        HighEfficientFA engine = new HighEfficientFA();
+        PatternSetRegistry registry = engine.newRegistry();
+        MatchService service = new MatchService(engine, registry, 0, 1, 4, 64).start();
+        try (Socket socket = connect(service)) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            send(out, (byte) 7, "abc");
+            out.flush();
+            assertEquals(MatchService.STATUS_ERROR, in.read());
+            assertTrue(in.readUTF().contains("kind"));
+
+            // The connection survives an unknown kind, but not an oversized frame
+            send(out, MatchService.PAYLOAD_BYTES, "abcd");
+            out.writeByte(MatchService.PAYLOAD_TEXT);
+            out.writeInt(65);
+            out.flush();
+            assertEquals(MatchService.STATUS_OK, in.read());
+            in.readInt();
+            in.readInt();
+            assertEquals(1, in.readInt());
+            in.readLong();
+            assertEquals(MatchService.STATUS_ERROR, in.read());
+            assertTrue(in.readUTF().contains("65"));
+            assertEquals(-1, in.read());
+        } finally {
+            service.close();
+            registry.close();
+        }
+    }
+
+    @Test
+    void overloadShedsRequestsNotConnections() throws Exception {
+        final List<String> patterns = MatchingFixtures.rules(40);
+        HighEfficientFA engine = new HighEfficientFA(patterns);
+        PatternSetRegistry registry = engine.newRegistry();
+        final MatchService service = new MatchService(engine, registry, 0, 1, 0, 8 << 20).start();
+        final String input = MatchingFixtures.inputs(patterns, 2).get(1);
+        ExecutorService clients = Executors.newFixedThreadPool(16);
+        try {
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (int c = 0; c < 16; c++) {
+                results.add(clients.submit(() -> {
+                    int busy = 0;
+                    try (Socket socket = connect(service)) {
+                        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                        DataInputStream in = new DataInputStream(socket.getInputStream());
+                        // A BUSY answer leaves the connection open: retry until the request is served
+                        while (true) {
+                            send(out, MatchService.PAYLOAD_TEXT, input);
+                            out.flush();
+                            int status = in.read();
+                            if (status == MatchService.STATUS_BUSY) {
+                                busy++;
+                                continue;
+                            }
+                            assertEquals(MatchService.STATUS_OK, status);
+                            in.readInt();
+                            in.readInt();
+                            int words = in.readInt();
+                            for (int w = 0; w < words; w++) {
+                                in.readLong();
+                            }
+                            return busy;
+                        }
+                    }
+                }));
+            }
+            long busy = 0;
+            for (Future<Integer> result : results) {
+                busy += result.get();
+            }
+            assertEquals(busy, service.getShedRequests());
+        } finally {
+            clients.shutdown();
+            service.close();
+            registry.close();
+        }
+    }
+
+    @Test
+    void headerOnlyConnectionsAreShedByPayloadBudget() throws Exception {
+        HighEfficientFA engine = new HighEfficientFA();
+        PatternSetRegistry registry = engine.newRegistry();
+        MatchService service = new MatchService(engine, registry, 0, 1, 4, 1 << 20, 2 << 20).start();
+        List<Socket> senders = new ArrayList<Socket>();
+        try {
+            // Ten 1 MB headers against a 2 MB budget: two reserve their payload, the rest are shed unread
+            for (int i = 0; i < 10; i++) {
+                Socket socket = connect(service);
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                out.writeByte(MatchService.PAYLOAD_TEXT);
+                out.writeInt(1 << 20);
+                out.flush();
+                senders.add(socket);
+            }
+            int busy = 0;
+            int waiting = 0;
+            for (Socket socket : senders) {
+                socket.setSoTimeout(500);
+                try {
+                    assertEquals(MatchService.STATUS_BUSY, socket.getInputStream().read());
+                    busy++;
+                } catch (SocketTimeoutException e) {
+                    waiting++;
+                }
+            }
+            assertEquals(8, busy);
+            assertEquals(2, waiting);
+            assertEquals(8, service.getShedRequests());
+
+            // Closing the half-sent requests gives their reservation back; a shed full frame is skipped
+            for (Socket socket : senders) {
+                socket.close();
+            }
+            try (Socket socket = connect(service)) {
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                int status = MatchService.STATUS_BUSY;
+                for (int attempt = 0; attempt < 50 && status == MatchService.STATUS_BUSY; attempt++) {
+                    out.writeByte(MatchService.PAYLOAD_TEXT);
+                    out.writeInt(1 << 20);
+                    out.write(new byte[1 << 20]);
+                    out.flush();
+                    status = in.read();
+                    if (status == MatchService.STATUS_BUSY) {
+                        Thread.sleep(20);
+                    }
+                }
+                assertEquals(MatchService.STATUS_OK, status);
+            }
+        } finally {
+            for (Socket socket : senders) {
+                socket.close();
+            }
+            service.close();
+            registry.close();
+        }
+    }
+
+    private static Socket connect(MatchService service) throws IOException {
+        return new Socket(InetAddress.getLoopbackAddress(), service.getPort());
+    }
+
+    private static void send(DataOutputStream out, byte kind, String payload) throws IOException {
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        out.writeByte(kind);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
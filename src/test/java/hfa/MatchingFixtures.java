@@ -0,0 +1,61 @@
+package hfa;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Shared inputs and the indexOf reference that every engine is compared against
+final class MatchingFixtures {
+    static final long SEED = 20240611L;
+
+    private MatchingFixtures() {
+    }
+
+    static List<String> rules(int count) {
+        return new WorkloadGenerator(SEED).patterns(count);
+    }
+
+    // Log lines at several sizes, with matches, near misses and the empty string
+    static List<String> inputs(List<String> patterns, int count) {
+        WorkloadGenerator generator = new WorkloadGenerator(SEED + 1);
+        List<String> inputs = new ArrayList<String>();
+        inputs.add("");
+        for (int i = 0; i < count; i++) {
+            inputs.add(generator.logText(64 + i * 97, patterns, 0.2, 0.3));
+        }
+        return inputs;
+    }
+
+    // Reference semantics of .*lit1.*lit2: each literal occurs after the end of the previous one
+    static boolean[] expected(List<String> patterns, String input) {
+        boolean[] matched = new boolean[patterns.size()];
+        for (int p = 0; p < patterns.size(); p++) {
+            int from = 0;
+            matched[p] = true;
+            for (String part : PatternCompiler.parsePattern(patterns.get(p))) {
+                int at = input.indexOf(part, from);
+                if (at < 0) {
+                    matched[p] = false;
+                    break;
+                }
+                from = at + part.length();
+            }
+        }
+        return matched;
+    }
+
+    static boolean[] flags(List<PatternMatchResult> results) {
+        boolean[] matched = new boolean[results.size()];
+        for (int p = 0; p < matched.length; p++) {
+            matched[p] = results.get(p).isMatched();
+        }
+        return matched;
+    }
+
+    static boolean[] flags(long[] mask, int patternCount) {
+        boolean[] matched = new boolean[patternCount];
+        for (int p = 0; p < patternCount; p++) {
+            matched[p] = (mask[p >>> 6] & (1L << p)) != 0;
+        }
+        return matched;
+    }
+}
@@ -0,0 +1,72 @@
+package hfa;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.jupiter.api.Test;
+
+class ParallelPatternMatcherTest {
+
+    @Test
+    void composedChunksMatchReference() {
+        List<String> patterns = MatchingFixtures.rules(60);
+        HighEfficientFA hfa = new HighEfficientFA(patterns);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            // 16- and 3-character chunks: many boundaries per literal chain, and literals spanning several chunks
+            for (int chunkSize : new int[] {16, 3}) {
+                ParallelPatternMatcher matcher = new ParallelPatternMatcher(hfa.getCompiledPatterns(), pool, chunkSize);
+                for (String input : MatchingFixtures.inputs(patterns, 40)) {
+                    boolean[] expected = MatchingFixtures.expected(patterns, input);
+                    assertArrayEquals(expected, MatchingFixtures.flags(matcher.match(input)));
+                    assertArrayEquals(expected, MatchingFixtures.flags(hfa.matchPatternsParallel(input)));
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void parallelScansRecordMetrics() {
+        List<String> patterns = MatchingFixtures.rules(20);
+        HighEfficientFA hfa = new HighEfficientFA(patterns);
+        PerformanceMetrics metrics = hfa.getMetrics();
+        metrics.setMode(MetricsMode.FULL);
+        metrics.reset();
+        String input = MatchingFixtures.inputs(patterns, 2).get(1);
+        hfa.matchPatternsParallel(input);
+        assertTrue(metrics.getMemoryAccesses() >= input.length());
+        assertEquals(1, metrics.getPatternCounters().get(patterns.get(0)).getScans());
+        assertEquals(1, sum(metrics.getLatencyHistogram()));
+    }
+
+    @Test
+    void leafCostPerCharacterDoesNotGrowWithRuleCount() {
+        String input = MatchingFixtures.inputs(MatchingFixtures.rules(400), 40).get(40);
+        ForkJoinPool pool = new ForkJoinPool(1);
+        try {
+            for (int ruleCount : new int[] {10, 400}) {
+                HighEfficientFA hfa = new HighEfficientFA(MatchingFixtures.rules(ruleCount));
+                PerformanceMetrics metrics = new PerformanceMetrics(MetricsMode.FULL);
+                // One leaf over the whole input: one literal automaton step per character, plus literal outputs
+                new ParallelPatternMatcher(hfa.getCompiledPatterns(), metrics, pool, input.length()).match(input);
+                double perCharacter = (double) metrics.getMemoryAccesses() / input.length();
+                assertTrue(perCharacter < 1.5, ruleCount + " rules: " + perCharacter + " accesses per character");
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static long sum(long[] values) {
+        long total = 0;
+        for (long value : values) {
+            total += value;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,55 @@
+package hfa;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class PatternCompilerTest {
+
+    @Test
+    void parsesLiteralPartsAndEscapes() {
+        assertArrayEquals(new String[] {"ab", "c.d"}, PatternCompiler.parsePattern(".*ab.*c\\.d"));
+        assertArrayEquals(new String[0], PatternCompiler.parsePattern(".*"));
+    }
+
+    @Test
+    void rejectsUnsupportedPatterns() {
+        assertThrows(IllegalArgumentException.class, () -> PatternCompiler.parsePattern("ab.*c"));
+        assertThrows(IllegalArgumentException.class, () -> PatternCompiler.parsePattern(".*a+b"));
+    }
+
+    @Test
+    void perPatternTablesMatchReference() {
+        List<String> patterns = MatchingFixtures.rules(40);
+        HighEfficientFA hfa = new HighEfficientFA(patterns);
+        for (String input : MatchingFixtures.inputs(patterns, 60)) {
+            assertArrayEquals(MatchingFixtures.expected(patterns, input),
+                    MatchingFixtures.flags(hfa.matchPatterns(input)));
+        }
+    }
+
+    @Test
+    void overlappingAndRepeatedLiteralsMatchReference() {
+        List<String> patterns = Arrays.asList(".*aab.*ab", ".*abab.*b", ".*a.*a.*a", ".*");
+        HighEfficientFA hfa = new HighEfficientFA(patterns);
+        for (String input : Arrays.asList("", "aab", "aaabab", "abab", "ababb", "aa", "xaxax")) {
+            assertArrayEquals(MatchingFixtures.expected(patterns, input),
+                    MatchingFixtures.flags(hfa.matchPatterns(input)));
+        }
+    }
+
+    @Test
+    void findPartReturnsRealOccurrences() {
+        // "ab" is below the skip-search length and searched directly; "abcdefgh" uses its shift table
+        CompiledPatternSet compiled = new HighEfficientFA(Arrays.asList(".*ab", ".*abcdefgh")).getCompiledPatterns();
+        String text = "a a abx abcdefg abcdefgh";
+        for (int from = 0; from <= text.length(); from++) {
+            assertEquals(text.indexOf("ab", from), compiled.findPart(text, 0, 0, from));
+            assertEquals(text.indexOf("abcdefgh", from), compiled.findPart(text, 1, 0, from));
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package hfa;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class PatternSetRegistryTest {
+
+    @Test
+    void matcherSettingsSurviveSwaps() throws Exception {
+        List<String> before = MatchingFixtures.rules(40);
+        List<String> after = MatchingFixtures.rules(70);
+        HighEfficientFA engine = new HighEfficientFA(before);
+        engine.setLazyDfaMode(true);
+        engine.setLazyDfaCacheStates(2);
+        PatternSetRegistry registry = engine.newRegistry();
+        try {
+            Matcher first = registry.matcher();
+            assertTrue(first.isLazyDfaMode());
+            assertEquals(2, first.getLazyDfaCacheStates());
+
+            assertEquals(2L, registry.update(after).get().longValue());
+            Matcher second = registry.matcher();
+            assertNotSame(first, second);
+            assertTrue(second.isLazyDfaMode());
+            assertEquals(2, second.getLazyDfaCacheStates());
+
+            for (String input : MatchingFixtures.inputs(after, 20)) {
+                boolean[] expected = MatchingFixtures.expected(after, input);
+                long[] mask = registry.matcher().whichMatch(input, null);
+                assertArrayEquals(expected, MatchingFixtures.flags(mask, after.size()));
+            }
+            assertTrue(registry.matcher().getLazyDfaScanner().isNfaFallback());
+        } finally {
+            registry.close();
+        }
+    }
+
+    @Test
+    void registrySettingsApplyToExistingMatchers() {
+        PatternSetRegistry registry = new HighEfficientFA(MatchingFixtures.rules(10)).newRegistry();
+        try {
+            Matcher matcher = registry.matcher();
+            registry.setSinglePassMode(true);
+            assertTrue(registry.matcher().isSinglePassMode());
+            assertSame(matcher, registry.matcher());
+        } finally {
+            registry.close();
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package hfa;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class PerformanceMetricsTest {
+
+    private static final String CODE = "if (ab == cd) return 1; #";
+
+    @Test
+    void lexersRecordOncePerTokenizeCall() {
+        FiniteAutomaton[] engines = { new TraditionalFA(), new ExtendedFA(), new HighEfficientFA() };
+        for (FiniteAutomaton engine : engines) {
+            PerformanceMetrics metrics = engine.getMetrics();
+
+            metrics.setMode(MetricsMode.DISABLED);
+            metrics.reset();
+            engine.tokenize(CODE);
+            assertEquals(0, metrics.getStateTransitions());
+            assertEquals(0, metrics.getMemoryAccesses());
+
+            // Sampling every scan: tokenize calls beginScan once and records like FULL mode
+            metrics.setMode(MetricsMode.SAMPLED);
+            metrics.setSampleInterval(1);
+            metrics.reset();
+            engine.tokenize(CODE);
+            long sampled = metrics.getStateTransitions();
+            assertTrue(sampled > 0, engine.getClass().getSimpleName());
+
+            metrics.setMode(MetricsMode.FULL);
+            metrics.reset();
+            engine.tokenize(CODE);
+            assertEquals(sampled, metrics.getStateTransitions());
+        }
+    }
+
+    @Test
+    void hfaLexerCountsStepsAndTokens() {
+        HighEfficientFA engine = new HighEfficientFA();
+        PerformanceMetrics metrics = engine.getMetrics();
+        metrics.reset();
+        engine.tokenize(CODE);
+        // Nine tokens plus the unrecognized '#': two accesses per step, one transition per token
+        assertEquals(9, metrics.getStateTransitions());
+        assertEquals(20, metrics.getMemoryAccesses());
+    }
+}
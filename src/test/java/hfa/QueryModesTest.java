@@ -0,0 +1,39 @@
+package hfa;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class QueryModesTest {
+
+    @Test
+    void queriesAgreeWithReferenceInEveryMode() {
+        List<String> patterns = MatchingFixtures.rules(90);
+        CompiledAutomaton automaton = new HighEfficientFA(patterns).getCompiledAutomaton();
+        Matcher perPattern = automaton.newMatcher();
+        Matcher singlePass = automaton.newMatcher();
+        singlePass.setSinglePassMode(true);
+        Matcher lazyDfa = automaton.newMatcher();
+        lazyDfa.setLazyDfaMode(true);
+        Matcher nfaFallback = automaton.newMatcher();
+        nfaFallback.setLazyDfaMode(true);
+        nfaFallback.setLazyDfaCacheStates(2);
+
+        long[] mask = null;
+        for (String input : MatchingFixtures.inputs(patterns, 50)) {
+            boolean[] expected = MatchingFixtures.expected(patterns, input);
+            int count = 0;
+            for (boolean matched : expected) {
+                count += matched ? 1 : 0;
+            }
+            for (Matcher matcher : new Matcher[] {perPattern, singlePass, lazyDfa, nfaFallback}) {
+                assertEquals(count > 0, matcher.matchesAny(input));
+                assertEquals(count, matcher.countMatches(input));
+                mask = matcher.whichMatch(input, mask);
+                assertArrayEquals(expected, MatchingFixtures.flags(mask, patterns.size()));
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package hfa;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class SinglePassMatchingTest {
+
+    @Test
+    void singlePassMatchesReference() {
+        List<String> patterns = MatchingFixtures.rules(120);
+        HighEfficientFA hfa = new HighEfficientFA(patterns);
+        hfa.setSinglePassMode(true);
+        for (String input : MatchingFixtures.inputs(patterns, 60)) {
+            assertArrayEquals(MatchingFixtures.expected(patterns, input),
+                    MatchingFixtures.flags(hfa.matchPatterns(input)));
+        }
+    }
+
+    @Test
+    void sharedLiteralsAdvanceEveryPattern() {
+        List<String> patterns = Arrays.asList(".*ab.*cd", ".*b.*c", ".*abc", ".*cd.*ab", ".*");
+        HighEfficientFA hfa = new HighEfficientFA(patterns);
+        hfa.setSinglePassMode(true);
+        for (String input : Arrays.asList("", "abcd", "abc", "cdab", "acbd", "ab cd ab")) {
+            assertArrayEquals(MatchingFixtures.expected(patterns, input),
+                    MatchingFixtures.flags(hfa.matchPatterns(input)));
+        }
+    }
+
+    @Test
+    void pooledMatcherDoesNotRetainLastInput() throws InterruptedException {
+        // Two candidate start characters: the prefilter takes its String cursor path
+        List<String> patterns = Arrays.asList(".*ab.*ac", ".*ba.*bb");
+        Matcher matcher = new HighEfficientFA(patterns).newMatcher();
+        matcher.setSinglePassMode(true);
+        WeakReference<String> scanned = scanOnce(matcher, patterns);
+        for (int i = 0; i < 20 && scanned.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(scanned.get());
+    }
+
+    private static WeakReference<String> scanOnce(Matcher matcher, List<String> patterns) {
+        String input = new StringBuilder("xx ab yy ac zz ba").append(System.nanoTime()).toString();
+        assertArrayEquals(MatchingFixtures.expected(patterns, input),
+                MatchingFixtures.flags(matcher.matchPatterns(input)));
+        matcher.matchBatch(Arrays.asList(input));
+        return new WeakReference<String>(input);
+    }
+}
@@ -0,0 +1,44 @@
+package hfa;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class StreamingMatcherTest {
+
+    @Test
+    void chunkedInputMatchesReference() throws IOException {
+        List<String> patterns = MatchingFixtures.rules(60);
+        HighEfficientFA hfa = new HighEfficientFA(patterns);
+        // Seven-character chunks split most literals across a chunk boundary
+        StreamingMatcher matcher = new StreamingMatcher(hfa.getCompiledPatterns(), hfa.getMetrics(), 7,
+                StandardCharsets.UTF_8);
+        for (String input : MatchingFixtures.inputs(patterns, 40)) {
+            boolean[] expected = MatchingFixtures.expected(patterns, input);
+            byte[] bytes = input.getBytes(StandardCharsets.UTF_8);
+            assertArrayEquals(expected, MatchingFixtures.flags(matcher.match(new StringReader(input))));
+            assertArrayEquals(expected, MatchingFixtures.flags(matcher.match(new ByteArrayInputStream(bytes))));
+            assertArrayEquals(expected, MatchingFixtures.flags(matcher.match(ByteBuffer.wrap(bytes))));
+        }
+    }
+
+    @Test
+    void fedChunksMatchReference() {
+        List<String> patterns = MatchingFixtures.rules(60);
+        HighEfficientFA hfa = new HighEfficientFA(patterns);
+        StreamingMatcher matcher = hfa.createStreamingMatcher();
+        for (String input : MatchingFixtures.inputs(patterns, 40)) {
+            matcher.reset();
+            for (int start = 0; start < input.length(); start += 13) {
+                matcher.feed(input.substring(start, Math.min(input.length(), start + 13)));
+            }
+            assertArrayEquals(MatchingFixtures.expected(patterns, input), MatchingFixtures.flags(matcher.finish()));
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package hfa;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class Utf8MatchingTest {
+    private static final String[] ALPHABET = {"a", "b", "x", "é", "ü", "中", "文", "😀", " "};
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void byteInputMatchesCharInputWithByteOffsets() {
+        Random random = new Random(MatchingFixtures.SEED);
+        for (int round = 0; round < 10; round++) {
+            List<String> patterns = new ArrayList<String>();
+            for (int p = 0; p < 30; p++) {
+                patterns.add(".*" + word(random, 1 + random.nextInt(3)) + ".*" + word(random, 1 + random.nextInt(2)));
+            }
+            Matcher matcher = new HighEfficientFA(patterns).newMatcher();
+            MatchResultSet chars = null;
+            MatchResultSet bytes = null;
+            for (int i = 0; i < 80; i++) {
+                String input = word(random, random.nextInt(60));
+                byte[] encoded = input.getBytes(StandardCharsets.UTF_8);
+                // A non-zero position: offsets are counted from it
+                ByteBuffer buffer = ByteBuffer.allocate(encoded.length + 3);
+                buffer.position(3);
+                buffer.put(encoded).position(3);
+
+                chars = matcher.matchPatterns(input, chars);
+                bytes = matcher.matchPatterns(buffer, bytes);
+                assertEquals(chars.getMatchedCount(), matcher.countMatches(buffer));
+                assertEquals(chars.getMatchedCount() > 0, matcher.matchesAny(buffer));
+                long[] mask = matcher.whichMatch(buffer, null);
+                assertEquals(3, buffer.position());
+                for (int p = 0; p < patterns.size(); p++) {
+                    assertEquals(chars.isMatched(p), bytes.isMatched(p), patterns.get(p) + " on " + input);
+                    assertEquals(chars.isMatched(p), (mask[p >>> 6] & (1L << p)) != 0);
+                    for (int k = 0; chars.isMatched(p) && k < chars.getPartCount(p); k++) {
+                        assertEquals(utf8Length(input, chars.getPartStart(p, k)), bytes.getPartStart(p, k));
+                        assertEquals(utf8Length(input, chars.getPartEnd(p, k)), bytes.getPartEnd(p, k));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void mappedFilesMatchNonAsciiLiterals() throws IOException {
+        HighEfficientFA hfa = new HighEfficientFA(Arrays.asList(".*café.*中文", ".*naïve"));
+        Path file = directory.resolve("input.txt");
+        Files.write(file, "zz café yy 中文 end".getBytes(StandardCharsets.UTF_8));
+        FileScanResult result = hfa.scanFile(file);
+        assertEquals(true, result.isMatched(0));
+        assertEquals(3, result.getMatchStart(0));
+        assertEquals(18, result.getMatchEnd(0));
+        assertEquals(false, result.isMatched(1));
+    }
+
+    private static String word(Random random, int length) {
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            word.append(ALPHABET[random.nextInt(ALPHABET.length)]);
+        }
+        return word.toString();
+    }
+
+    private static int utf8Length(String text, int charOffset) {
+        return text.substring(0, charOffset).getBytes(StandardCharsets.UTF_8).length;
+    }
+}